@@ -16,17 +16,20 @@
  */
 package com.PicasaPhotoUpload;
 
+import com.android.picasaphotouploader.AlbumPreference;
 
-
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.os.Bundle;
 import android.preference.PreferenceActivity;
+import android.preference.PreferenceManager;
 
 /**
  * Class to edit user preferences
  *
  * @author Jan Peter Hooiveld
  */
-public class EditPreferences extends PreferenceActivity
+public class EditPreferences extends PreferenceActivity implements OnSharedPreferenceChangeListener
 {
   /**
    * Create preferences screen where user can edit his preferences
@@ -41,4 +44,39 @@ public class EditPreferences extends PreferenceActivity
     // add preferences from xml
     addPreferencesFromResource(R.xml.preferences);
   }
+
+  /**
+   * Listen to changes of preferences while screen is shown
+   */
+  @Override
+  protected void onResume()
+  {
+    super.onResume();
+    PreferenceManager.getDefaultSharedPreferences(this).registerOnSharedPreferenceChangeListener(this);
+  }
+
+  /**
+   * Stop listening to changes of preferences
+   */
+  @Override
+  protected void onPause()
+  {
+    PreferenceManager.getDefaultSharedPreferences(this).unregisterOnSharedPreferenceChangeListener(this);
+    super.onPause();
+  }
+
+  /**
+   * Fetch album list in the background when account changed, so the album
+   * picker usually opens right away
+   *
+   * @param prefs User preferences
+   * @param key Key of changed preference
+   */
+  @Override
+  public void onSharedPreferenceChanged(SharedPreferences prefs, String key)
+  {
+    if (key.equals("email") || key.equals("password")) {
+      AlbumPreference.prefetch(getApplicationContext());
+    }
+  }
 }
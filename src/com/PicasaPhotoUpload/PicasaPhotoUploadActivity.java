@@ -2,20 +2,21 @@ package com.PicasaPhotoUpload;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 import com.android.picasaphotouploader.ApplicationNotification;
+import com.android.picasaphotouploader.BackfillJob;
+import com.android.picasaphotouploader.ConnectionPrewarmer;
+import com.android.picasaphotouploader.ConnectivityMonitor;
 import com.android.picasaphotouploader.ImageTableObserver;
+import com.android.picasaphotouploader.ScanCheckpoint;
+import com.android.picasaphotouploader.UploadEngine;
 import com.android.picasaphotouploader.Utils;
 
 import android.app.Activity;
 import android.app.NotificationManager;
 import android.content.Context;
-import android.content.CursorLoader;
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.database.Cursor;
 import android.os.Bundle;
 import android.os.Handler;
 import android.preference.PreferenceManager;
@@ -32,14 +33,14 @@ public class PicasaPhotoUploadActivity extends Activity {
 	  private ImageTableObserver camera;
 	
 	  /**
-	   * Highest image id in database
+	   * Receiver that prepares connections when network comes up
 	   */
-	  private int maxId;
-	
+	  private static ConnectionPrewarmer prewarmer;
+
 	  /**
-	   * Image item queue
+	   * Highest image id in database
 	   */
-	  private ExecutorService queue = Executors.newSingleThreadExecutor();
+	  private volatile int maxId;
 	
 	  /**
 	   * Menu item to send application to background
@@ -61,6 +62,11 @@ public class PicasaPhotoUploadActivity extends Activity {
 	   * Menu item to exit application
 	   */
 	  private static final int MENU_EXIT = 5;
+
+	  /**
+	   * Menu item to start or pause upload of existing photos
+	   */
+	  private static final int MENU_BACKFILL = 6;
 	  
 	  /**
 	   * Hold all notification ID's
@@ -97,17 +103,59 @@ public class PicasaPhotoUploadActivity extends Activity {
           ApplicationNotification.getInstance().enable(getBaseContext());
         }
 
-        // store highest image id from database in application
-        setMaxIdFromDatabase();
+        // continue scanning images from stored checkpoint
+        ScanCheckpoint checkpoint = new ScanCheckpoint(getBaseContext());
+        maxId                     = checkpoint.restore();
+
+        // keep track of network state from broadcasts
+        ConnectivityMonitor.getInstance().start(getApplicationContext());
+
+        // start engine that uploads queued images
+        UploadEngine.getInstance().start(getApplicationContext());
+
+        // prepare connections whenever network comes up
+        if (prewarmer == null) {
+          prewarmer = new ConnectionPrewarmer();
+          ConnectivityMonitor.getInstance().addListener(prewarmer);
+        }
+
+        // check all images of a changed media database, otherwise continue
+        // upload of existing photos if it was running
+        if (checkpoint.needsReconcile()) {
+          BackfillJob.getInstance().reconcile(getApplicationContext(), maxId);
+          checkpoint.save(maxId);
+        } else {
+          BackfillJob.getInstance().resume(getApplicationContext());
+        }
 
        if (!PicasaPhotoUploadActivity.isAlreadyCreated){
        	    // register camera observer
-            camera = new ImageTableObserver(new Handler(), this, queue);
+            camera = new ImageTableObserver(new Handler(), this, UploadEngine.getInstance());
             getContentResolver().registerContentObserver(Media.EXTERNAL_CONTENT_URI, true, camera);
+
+            // upload images added while application was not running
+            camera.onChange(false);
             PicasaPhotoUploadActivity.isAlreadyCreated = true;
         }
     }
     
+    /**
+     * Unregister camera observer and stop its threads, a new instance of
+     * the activity registers a new observer
+     */
+    @Override
+    public void onDestroy()
+    {
+      if (camera != null) {
+        getContentResolver().unregisterContentObserver(camera);
+        camera.quit();
+        camera = null;
+        PicasaPhotoUploadActivity.isAlreadyCreated = false;
+      }
+
+      super.onDestroy();
+    }
+
     /**
      * Override parent function so back button won't stop application
      * but instead we send it to background
@@ -145,12 +193,27 @@ public class PicasaPhotoUploadActivity extends Activity {
       menu.add(1, MENU_PREFS, Menu.NONE, "Preferences").setIcon(android.R.drawable.ic_menu_preferences);
       menu.add(2, MENU_NOTIFY, Menu.NONE, "Clear Notification").setIcon(android.R.drawable.ic_menu_delete);
       menu.add(3, MENU_LICENSE, Menu.NONE, "License").setIcon(android.R.drawable.ic_menu_view);
-      menu.add(4, MENU_EXIT, Menu.NONE, "Exit").setIcon(android.R.drawable.ic_menu_close_clear_cancel);
+      menu.add(4, MENU_BACKFILL, Menu.NONE, "Upload existing photos").setIcon(android.R.drawable.ic_menu_upload);
+      menu.add(5, MENU_EXIT, Menu.NONE, "Exit").setIcon(android.R.drawable.ic_menu_close_clear_cancel);
 
       // return
       return true;
     }
 
+    /**
+     * Update menu items before menu is shown
+     *
+     * @param menu
+     * @return
+     */
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu)
+    {
+      menu.findItem(MENU_BACKFILL).setTitle(BackfillJob.getInstance().isRunning() ? "Pause photo upload" : "Upload existing photos");
+
+      return super.onPrepareOptionsMenu(menu);
+    }
+
     /**
      * Code to execute when menu item is selected
      * 
@@ -177,10 +240,19 @@ public class PicasaPhotoUploadActivity extends Activity {
         case MENU_LICENSE:
           Utils.textDialog(this, "License Information", getString(R.string.license));
           break;
-        // kill the queue, all running notifications and exit application
+        // start or pause upload of photos taken before install
+        case MENU_BACKFILL:
+          if (BackfillJob.getInstance().isRunning()) {
+            BackfillJob.getInstance().pause();
+          } else {
+            BackfillJob.getInstance().start(getApplicationContext(), maxId);
+          }
+          break;
+        // kill the upload engine, all running notifications and exit application
         // usual way is to use finish() but uploads will keep running otherwise
         case MENU_EXIT:
-          queue.shutdownNow();
+          BackfillJob.getInstance().pause();
+          UploadEngine.getInstance().shutdown();
           ((NotificationManager)getSystemService(Context.NOTIFICATION_SERVICE)).cancelAll();
           System.exit(0);
           break;
@@ -190,32 +262,6 @@ public class PicasaPhotoUploadActivity extends Activity {
       return (super.onOptionsItemSelected(item));
     }
 
-    /**
-     * Store highest image id from image table
-     */
-    private void setMaxIdFromDatabase()
-    {
-      String columns[] = new String[]{ Media._ID, Media.DISPLAY_NAME, Media.MINI_THUMB_MAGIC };
-      // Cursor cursor    = managedQuery(Media.EXTERNAL_CONTENT_URI, columns, null, null, Media._ID+" DESC");
-      
-      // works in Honeycomb
-      String selection = null;
-      String[] selectionArgs = null;
-      String sortOrder = Media._ID+" DESC";
-      
-      CursorLoader cursorLoader = new CursorLoader(
-    	        this, 
-    	        Media.EXTERNAL_CONTENT_URI, 
-    	        columns, 
-    	        selection, 
-    	        selectionArgs, 
-    	        sortOrder);
-
-      Cursor cursor = cursorLoader.loadInBackground();
-      startManagingCursor(cursor);
-      maxId = cursor.moveToFirst() ? cursor.getInt(cursor.getColumnIndex(Media._ID)) : -1;
-    }
-    
     /**
      * Clear all upload notifications
      */
@@ -16,8 +16,8 @@
  */
 package com.android.picasaphotouploader;
 
-import java.net.HttpURLConnection;
-import java.net.URL;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
 
 /**
  * Class to check if Picasa album exists for a user.
@@ -65,29 +65,48 @@ public class AlbumExists
    */
   public boolean hasAlbum()
   {
+    return Boolean.TRUE.equals(query());
+  }
+
+  /**
+   * Ask Picasa if album exists, only the id of the album feed is requested
+   * so no entries are sent back
+   *
+   * @return If album exists, null if request failed and it's unknown
+   */
+  public Boolean query()
+  {
+    HttpResponse response = null;
+
     try {
       // set http items
-      String albumUrl       = "http://picasaweb.google.com/data/feed/api/user/"+email+"/albumid/"+album;
-      HttpURLConnection con = (HttpURLConnection) new URL(albumUrl).openConnection();
+      String albumUrl = "http://picasaweb.google.com/data/feed/api/user/"+email+"/albumid/"+album+"?fields=id&max-results=0";
+      HttpGet get     = new HttpGet(albumUrl);
 
-      // request method, timeout and headers
-      con.setRequestMethod("GET") ;
-      con.setReadTimeout(15000);
-      con.setRequestProperty("Authorization", "GoogleLogin auth="+auth);
-      con.setRequestProperty("GData-Version", "2");
+      // set headers
+      get.addHeader("Authorization", "GoogleLogin auth="+auth);
+      get.addHeader("GData-Version", "2");
 
-      // execute connection
-      con.connect();
+      // execute request on shared client
+      response   = SharedHttpClient.getInstance().getClient().execute(get);
+      int status = response.getStatusLine().getStatusCode();
+
+      // album was found
+      if (status == 200) {
+        return true;
+      }
 
-      // if return code is greater than 200 it means album was not found
-      if (con.getResponseCode() > 200) {
+      // album was deleted or is not accessible
+      if (status == 404 || status == 403) {
         return false;
       }
     } catch (Exception e) {
-      return false;
+    } finally {
+      // release connection to the pool
+      SharedHttpClient.consume(response);
     }
 
-    // we found the Picasa album
-    return true;
+    // server error or no connection, album may still exist
+    return null;
   }
 }
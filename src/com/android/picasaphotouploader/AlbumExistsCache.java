@@ -0,0 +1,148 @@
+/**
+ * This file is part of Picasa Photo Uploader.
+ *
+ * Picasa Photo Uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Picasa Photo Uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Picasa Photo Uploader. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.android.picasaphotouploader;
+
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Class to cache if Picasa albums exist, so the album is not requested
+ * again for every image. Albums that were not found are cached shorter so
+ * a new album is picked up soon
+ */
+public class AlbumExistsCache
+{
+  /**
+   * Singleton that refers to this class
+   */
+  private static AlbumExistsCache instance;
+
+  /**
+   * Time an existing album is cached
+   */
+  private static final long POSITIVE_TTL = 10 * 60 * 1000L;
+
+  /**
+   * Time a missing album is cached
+   */
+  private static final long NEGATIVE_TTL = 60 * 1000L;
+
+  /**
+   * Cached results by account and album
+   */
+  private Map<String, Entry> entries = new HashMap<String, Entry>();
+
+  /**
+   * Cached result of a check
+   */
+  private static class Entry
+  {
+    /**
+     * If album exists
+     */
+    private boolean exists;
+
+    /**
+     * Time at which result expires in milliseconds since boot
+     */
+    private long expires;
+  }
+
+  /**
+   * Constructor
+   */
+  private AlbumExistsCache() {}
+
+  /**
+   * Singleton function
+   *
+   * @return Instance of this class
+   */
+  public static synchronized AlbumExistsCache getInstance()
+  {
+    if (instance == null) {
+      instance = new AlbumExistsCache();
+    }
+
+    return instance;
+  }
+
+  /**
+   * Block cloning since we use singleton
+   *
+   * @return
+   * @throws CloneNotSupportedException
+   */
+  @Override
+  public Object clone() throws CloneNotSupportedException
+  {
+    throw new CloneNotSupportedException();
+  }
+
+  /**
+   * Check if album exists, asks Picasa only when there is no valid cached
+   * result. Failed requests are not cached and count as existing, only an
+   * answer of the server says an album is gone
+   *
+   * @param auth Google authentication string
+   * @param email User google e-mail
+   * @param album User Picasa album
+   * @return Album exists or state is unknown
+   */
+  public boolean hasAlbum(String auth, String email, String album)
+  {
+    String key = email+"/"+album;
+    long now   = SystemClock.elapsedRealtime();
+
+    synchronized (this) {
+      Entry entry = entries.get(key);
+
+      if (entry != null && now < entry.expires) {
+        return entry.exists;
+      }
+    }
+
+    Boolean exists = new AlbumExists(auth, email, album).query();
+
+    if (exists == null) {
+      return true;
+    }
+
+    Entry entry   = new Entry();
+    entry.exists  = exists;
+    entry.expires = SystemClock.elapsedRealtime() + (exists ? POSITIVE_TTL : NEGATIVE_TTL);
+
+    synchronized (this) {
+      entries.put(key, entry);
+    }
+
+    return exists;
+  }
+
+  /**
+   * Drop cached result, used when an upload to the album was not found
+   *
+   * @param email User google e-mail
+   * @param album User Picasa album
+   */
+  public synchronized void invalidate(String email, String album)
+  {
+    entries.remove(email+"/"+album);
+  }
+}
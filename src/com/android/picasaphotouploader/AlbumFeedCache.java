@@ -0,0 +1,296 @@
+/**
+ * This file is part of Picasa Photo Uploader.
+ *
+ * Picasa Photo Uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Picasa Photo Uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Picasa Photo Uploader. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.android.picasaphotouploader;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Class to keep the album list of an account on disk together with the
+ * validators of the feed. The picker shows the cached albums right away and
+ * a refresh only downloads the feed again when it changed. One instance
+ * owns the cache file so refreshes from different threads never write it
+ * at the same time
+ */
+public class AlbumFeedCache
+{
+  /**
+   * Singleton that refers to this class
+   */
+  private static AlbumFeedCache instance;
+
+  /**
+   * Name of cache file
+   */
+  private static final String FILE_NAME = "album_feed";
+
+  /**
+   * Cache file
+   */
+  private File file;
+
+  /**
+   * Account of cached albums
+   */
+  private String email;
+
+  /**
+   * Entity tag of cached feed
+   */
+  private String etag;
+
+  /**
+   * Last modification date of cached feed
+   */
+  private String lastModified;
+
+  /**
+   * Cached album id's
+   */
+  private CharSequence[] albumIds;
+
+  /**
+   * Cached album names
+   */
+  private CharSequence[] albumNames;
+
+  /**
+   * Constructor
+   *
+   * @param context Application context
+   */
+  private AlbumFeedCache(Context context)
+  {
+    file = new File(context.getCacheDir(), FILE_NAME);
+  }
+
+  /**
+   * Singleton function
+   *
+   * @param context Application context
+   * @return Instance of this class
+   */
+  public static synchronized AlbumFeedCache getInstance(Context context)
+  {
+    if (instance == null) {
+      instance = new AlbumFeedCache(context.getApplicationContext());
+    }
+
+    return instance;
+  }
+
+  /**
+   * Block cloning since we use singleton
+   *
+   * @return
+   * @throws CloneNotSupportedException
+   */
+  @Override
+  public Object clone() throws CloneNotSupportedException
+  {
+    throw new CloneNotSupportedException();
+  }
+
+  /**
+   * Load cached albums of account from disk
+   *
+   * @param email Google user e-mail
+   * @return If albums of account were cached
+   */
+  public synchronized boolean load(String email)
+  {
+    if (email.equals(this.email) && albumIds != null) {
+      return true;
+    }
+
+    if (!file.exists()) {
+      return false;
+    }
+
+    DataInputStream in = null;
+
+    try {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+      if (!in.readUTF().equals(email)) {
+        return false;
+      }
+
+      String etag         = in.readUTF();
+      String lastModified = in.readUTF();
+      int count           = in.readInt();
+      CharSequence[] ids   = new CharSequence[count];
+      CharSequence[] names = new CharSequence[count];
+
+      for (int i = 0; i < count; i++) {
+        ids[i]   = in.readUTF();
+        names[i] = in.readUTF();
+      }
+
+      this.email        = email;
+      this.etag         = etag.length() == 0 ? null : etag;
+      this.lastModified = lastModified.length() == 0 ? null : lastModified;
+      this.albumIds     = ids;
+      this.albumNames   = names;
+
+      return true;
+    } catch (IOException e) {
+      Log.w("AlbumFeedCache", "Could not read album cache", e);
+      return false;
+    } finally {
+      close(in);
+    }
+  }
+
+  /**
+   * Fetch album list of account, the feed is only downloaded again when it
+   * changed since it was cached
+   *
+   * @param auth Google authentication string
+   * @param email Google user e-mail
+   * @return If albums could be fetched or were still valid
+   */
+  public boolean refresh(String auth, String email)
+  {
+    return refresh(auth, email, null);
+  }
+
+  /**
+   * Fetch album list of account, albums are passed to the listener while
+   * the feed is read. The listener is not called when the cached albums are
+   * still valid
+   *
+   * @param auth Google authentication string
+   * @param email Google user e-mail
+   * @param listener Listener for albums or null
+   * @return If albums could be fetched or were still valid
+   */
+  public boolean refresh(String auth, String email, AlbumList.Listener listener)
+  {
+    AlbumList list;
+
+    synchronized (this) {
+      list = new AlbumList(auth, email);
+
+      if (load(email)) {
+        list.setValidators(etag, lastModified);
+      }
+    }
+
+    if (!list.fetchAlbumList(listener)) {
+      return false;
+    }
+
+    if (list.isNotModified()) {
+      Log.d("AlbumFeedCache", "Album feed not modified");
+      return true;
+    }
+
+    store(email, list);
+
+    return true;
+  }
+
+  /**
+   * Store fetched albums in memory and on disk
+   *
+   * @param email Google user e-mail
+   * @param list Fetched album list
+   */
+  private synchronized void store(String email, AlbumList list)
+  {
+    this.email        = email;
+    this.etag         = list.getETag();
+    this.lastModified = list.getLastModified();
+    this.albumIds     = list.getAlbumIds();
+    this.albumNames   = list.getAlbumNames();
+
+    // write to temporary file first so a failed write keeps the old cache
+    File temp            = new File(file.getPath()+".tmp");
+    DataOutputStream out = null;
+
+    try {
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+      out.writeUTF(email);
+      out.writeUTF(etag == null ? "" : etag);
+      out.writeUTF(lastModified == null ? "" : lastModified);
+      out.writeInt(albumIds.length);
+
+      for (int i = 0; i < albumIds.length; i++) {
+        out.writeUTF(albumIds[i].toString());
+        out.writeUTF(albumNames[i].toString());
+      }
+
+      out.close();
+      out = null;
+
+      if (!temp.renameTo(file)) {
+        throw new IOException("Could not rename "+temp);
+      }
+    } catch (IOException e) {
+      Log.w("AlbumFeedCache", "Could not write album cache", e);
+      temp.delete();
+    } finally {
+      close(out);
+    }
+  }
+
+  /**
+   * Close stream and ignore errors
+   *
+   * @param stream Stream or null
+   */
+  private void close(Closeable stream)
+  {
+    if (stream != null) {
+      try {
+        stream.close();
+      } catch (IOException e) {
+      }
+    }
+  }
+
+  /**
+   * Get cached album id's
+   *
+   * @return Album id's or null if nothing is cached
+   */
+  public synchronized CharSequence[] getAlbumIds()
+  {
+    return albumIds;
+  }
+
+  /**
+   * Get cached album names
+   *
+   * @return Album names or null if nothing is cached
+   */
+  public synchronized CharSequence[] getAlbumNames()
+  {
+    return albumNames;
+  }
+}
@@ -16,23 +16,20 @@
  */
 package com.android.picasaphotouploader;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.io.StringReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-
-import org.w3c.dom.CharacterData;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.InputSource;
-
 import android.util.Log;
+import android.util.Xml;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
 
 /**
  * Class to get list of Picasa albums for a user
@@ -41,6 +38,35 @@ import android.util.Log;
  */
 public class AlbumList
 {
+  /**
+   * Listener that receives albums while the feed is read
+   */
+  public interface Listener
+  {
+    /**
+     * Album was read from the feed
+     *
+     * @param id Picasa album id
+     * @param name Picasa album name
+     */
+    public void album(String id, String name);
+  }
+
+  /**
+   * Number of albums requested per page
+   */
+  private static final int PAGE_SIZE = 100;
+
+  /**
+   * Only album id and title are requested
+   */
+  private static final String FIELDS = "entry(title,gphoto:id)";
+
+  /**
+   * Namespace of the gphoto elements, the pull parser reports local names
+   */
+  private static final String GPHOTO_NAMESPACE = "http://schemas.google.com/photos/2007";
+
   /**
    * Google authentication string
    */
@@ -61,6 +87,21 @@ public class AlbumList
    */
   private CharSequence[] albumNames;
 
+  /**
+   * Entity tag of the feed
+   */
+  private String etag;
+
+  /**
+   * Last modification date of the feed
+   */
+  private String lastModified;
+
+  /**
+   * Set when the feed didn't change since the given validators
+   */
+  private boolean notModified = false;
+
   /**
    * Constructor
    * 
@@ -73,6 +114,19 @@ public class AlbumList
     this.email = email;
   }
 
+  /**
+   * Set validators of a cached feed, the feed is only sent again when it
+   * changed since
+   *
+   * @param etag Entity tag of cached feed or null
+   * @param lastModified Last modification date of cached feed or null
+   */
+  public void setValidators(String etag, String lastModified)
+  {
+    this.etag         = etag;
+    this.lastModified = lastModified;
+  }
+
   /**
    * Fetches list of albums that user has in Picasa
    * 
@@ -80,95 +134,181 @@ public class AlbumList
    */
   public boolean fetchAlbumList()
   {
+    return fetchAlbumList(null);
+  }
+
+  /**
+   * Fetches list of albums that user has in Picasa page by page, albums
+   * are passed to the listener as soon as they are read
+   *
+   * @param listener Listener for albums or null
+   * @return Has albums or not
+   */
+  public boolean fetchAlbumList(Listener listener)
+  {
+    List<CharSequence> ids   = new ArrayList<CharSequence>();
+    List<CharSequence> names = new ArrayList<CharSequence>();
+
     try {
-      // set http items
-      String albumUrl       = "http://picasaweb.google.com/data/feed/api/user/"+email;
-      HttpURLConnection con = (HttpURLConnection) new URL(albumUrl).openConnection();
-
-      // request method, timeout and headers
-      con.setRequestMethod("GET") ;
-      con.setReadTimeout(15000);
-      con.setRequestProperty("Authorization", "GoogleLogin auth="+auth);
-      con.setRequestProperty("GData-Version", "2");
-
-      // set timeout and that we will process output
-      con.setReadTimeout(15000);
-      //con.setDoOutput(true);
-
-      // connnect to url
-      con.connect();
-      Thread.sleep(2000);
-      Log.d("AlbumList", con.getInputStream().toString());
-      // read output returned for url
-      BufferedReader reader = new BufferedReader(new InputStreamReader(con.getInputStream()));
-      StringBuilder builder = new StringBuilder();
-      String line;
-
-      // accumulate response body
-      while ((line = reader.readLine()) != null) {
-        builder.append(line + "\n");
-      }
+      int start = 1;
+
+      // request pages until a page is not full
+      while (true) {
+        int count = fetchPage(start, ids, names, listener);
+
+        // feed didn't change, cached albums are still valid
+        if (notModified) {
+          return true;
+        }
 
-      // parse response body
-      Log.d("AlbumList", builder.toString());
-      parseAlbums(builder.toString());
+        if (count < PAGE_SIZE) {
+          break;
+        }
+
+        start += count;
+      }
     } catch (Exception e) {
-    	e.printStackTrace();
+      Log.w("AlbumList", "Could not fetch album list", e);
       return false;
     }
 
+    albumIds   = ids.toArray(new CharSequence[ids.size()]);
+    albumNames = names.toArray(new CharSequence[names.size()]);
+
     return true;
   }
 
   /**
-   * Parse xml to get Picasa album names and id's
-   * 
-   * @param xml The xml response that was received
+   * Fetch one page of the album feed
+   *
+   * @param start Index of first album, starts at 1
+   * @param ids List to add album id's to
+   * @param names List to add album names to
+   * @param listener Listener for albums or null
+   * @return Number of albums on page
+   * @throws Exception When request or parsing failed
    */
-  private void parseAlbums(String xml)
+  private int fetchPage(int start, List<CharSequence> ids, List<CharSequence> names, Listener listener) throws Exception
   {
+    HttpResponse response = null;
+
     try {
-      // set xml vars
-      DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-      DocumentBuilder db         = dbf.newDocumentBuilder();
-      InputSource is             = new InputSource();
-
-      // import the xml
-      is.setCharacterStream(new StringReader(xml));
-
-      // parse xml,get all album entries and create arrays to hold further data
-      Document doc     = db.parse(is);
-      NodeList entries = doc.getElementsByTagName("entry");
-      albumIds         = new CharSequence[entries.getLength()];
-      albumNames       = new CharSequence[entries.getLength()];
-
-      // loop all album entries and store album id's and names to arrays
-      for (int i = 0; i < entries.getLength(); i++) {
-        Element element = (Element) entries.item(i);
-        albumIds[i]     = (CharSequence)getCharacterDataFromElement((Element)element.getElementsByTagName("gphoto:id").item(0));
-        albumNames[i]   = (CharSequence)getCharacterDataFromElement((Element)element.getElementsByTagName("title").item(0));
+      // set http items
+      String albumUrl = "http://picasaweb.google.com/data/feed/api/user/"+email+"?kind=album&fields="+FIELDS+"&start-index="+start+"&max-results="+PAGE_SIZE;
+      HttpGet get     = new HttpGet(albumUrl);
+
+      // set headers
+      get.addHeader("Authorization", "GoogleLogin auth="+auth);
+      get.addHeader("GData-Version", "2");
+      get.addHeader("Accept-Encoding", "gzip");
+      get.addHeader("User-Agent", "PicasaPhotoUploader (gzip)");
+
+      // first page tells if feed changed since it was cached
+      if (start == 1 && etag != null) {
+        get.addHeader("If-None-Match", etag);
       }
-    } catch (Exception e) {
-      return;
+
+      if (start == 1 && lastModified != null) {
+        get.addHeader("If-Modified-Since", lastModified);
+      }
+
+      // execute request on shared client
+      response   = SharedHttpClient.getInstance().getClient().execute(get);
+      int status = response.getStatusLine().getStatusCode();
+
+      if (start == 1 && status == 304) {
+        notModified = true;
+        return 0;
+      }
+
+      if (status != 200 || response.getEntity() == null) {
+        throw new UploadException("Could not fetch album list", response);
+      }
+
+      // remember validators of the feed
+      if (start == 1) {
+        etag         = getHeader(response, "ETag");
+        lastModified = getHeader(response, "Last-Modified");
+      }
+
+      // parse response body while it arrives, unzip it if it was compressed
+      InputStream in = response.getEntity().getContent();
+
+      if ("gzip".equalsIgnoreCase(getHeader(response, "Content-Encoding"))) {
+        in = new GZIPInputStream(in);
+      }
+
+      return parseAlbums(in, ids, names, listener);
+    } finally {
+      // release connection to the pool
+      SharedHttpClient.consume(response);
     }
   }
 
   /**
-   * Helper function to get data from an xml element
+   * Get value of response header
    *
-   * @param element Xml element to get data from
-   * @return Data from the xml element
+   * @param response Http response
+   * @param name Name of header
+   * @return Value of header or null if it's missing
+   */
+  private String getHeader(HttpResponse response, String name)
+  {
+    Header header = response.getFirstHeader(name);
+
+    return header == null ? null : header.getValue();
+  }
+
+  /**
+   * Parse xml stream to get Picasa album names and id's
+   * 
+   * @param in The xml response that is received
+   * @param ids List to add album id's to
+   * @param names List to add album names to
+   * @param listener Listener for albums or null
+   * @return Number of albums found
+   * @throws XmlPullParserException
+   * @throws IOException
    */
-  private String getCharacterDataFromElement(Element element)
+  private int parseAlbums(InputStream in, List<CharSequence> ids, List<CharSequence> names, Listener listener) throws XmlPullParserException, IOException
   {
-    Node child = element.getFirstChild();
-    
-    if (child instanceof CharacterData) {
-       CharacterData cd = (CharacterData) child;
-       return cd.getData();
+    XmlPullParser parser = Xml.newPullParser();
+    parser.setInput(in, "UTF-8");
+
+    int count    = 0;
+    boolean open = false;
+    String id    = null;
+    String name  = null;
+
+    for (int event = parser.getEventType(); event != XmlPullParser.END_DOCUMENT; event = parser.next()) {
+      String tag = parser.getName();
+
+      if (event == XmlPullParser.START_TAG) {
+        if (tag.equals("entry")) {
+          open = true;
+          id   = null;
+          name = "";
+        } else if (open && tag.equals("id") && GPHOTO_NAMESPACE.equals(parser.getNamespace())) {
+          id = parser.nextText();
+        } else if (open && tag.equals("title")) {
+          name = parser.nextText();
+        }
+      } else if (event == XmlPullParser.END_TAG && tag.equals("entry")) {
+        open = false;
+        count++;
+
+        if (id != null) {
+          ids.add(id);
+          names.add(name);
+
+          if (listener != null) {
+            listener.album(id, name);
+          }
+        }
+      }
     }
-    
-    return "";
+
+    return count;
   }
 
   /**
@@ -190,4 +330,35 @@ public class AlbumList
   {
     return albumNames;
   }
+
+  /**
+   * Check if feed didn't change since the validators that were set, album
+   * id's and names are not retrieved in that case
+   *
+   * @return Feed not modified or not
+   */
+  public boolean isNotModified()
+  {
+    return notModified;
+  }
+
+  /**
+   * Get entity tag of the feed
+   *
+   * @return Entity tag or null
+   */
+  public String getETag()
+  {
+    return etag;
+  }
+
+  /**
+   * Get last modification date of the feed
+   *
+   * @return Last modification date or null
+   */
+  public String getLastModified()
+  {
+    return lastModified;
+  }
 }
@@ -16,18 +16,16 @@
  */
 package com.android.picasaphotouploader;
 
-import java.util.List;
-
-import android.app.Activity;
+import android.app.ProgressDialog;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.os.AsyncTask;
-import android.os.Looper;
 import android.preference.ListPreference;
 import android.preference.PreferenceManager;
 import android.util.AttributeSet;
-import android.util.Log;
-import android.widget.Toast;
+
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Override of class ListPreference to show list of Picasa album
@@ -37,56 +35,32 @@ import android.widget.Toast;
  */
 public class AlbumPreference extends ListPreference
 {
+	/**
+	 * Albums were loaded
+	 */
+	private static final int RESULT_OK = 0;
+
+	/**
+	 * Google authentication failed
+	 */
+	private static final int RESULT_AUTH_FAILED = 1;
+
+	/**
+	 * No albums were found or they could not be loaded
+	 */
+	private static final int RESULT_NO_ALBUMS = 2;
+
+	/**
+	 * Loading of albums that is running
+	 */
+	private AlbumLoader loader;
+
 	/**
 	 * Constructor
 	 *
 	 * @param context Application context
 	 * @param attrs Attributes
 	 */
-	private String auth;
-	private Boolean isDone = false;
-	private Boolean isAlbumRetrieveDone = false;
-	private Boolean isNoAlbum = true;
-	private AlbumList list;
-
-	public AlbumList getList() {
-		return list;
-	}
-	public void setList(AlbumList list) {
-		this.list = list;
-	}
-	
-	public String getAuth() {
-		return auth;
-	}
-	public void setAuth(String auth) {
-		this.auth = auth;
-	}
-
-	public Boolean getIsDone() {
-		return isDone;
-	}
-	public void setIsDone(Boolean isDone) {
-		this.isDone = isDone;
-	}
-	
-	public Boolean getIsAlbumRetrieveDone() {
-		return isAlbumRetrieveDone;
-	}
-	public void setIsAlbumRetrieveDone(Boolean isAlbumRetrieveDone) {
-		this.isAlbumRetrieveDone = isAlbumRetrieveDone;
-	}
-	public Boolean getIsNoAlbum() {
-		return isNoAlbum;
-	}
-	public void setIsNoAlbum(Boolean isNoAlbum) {
-		this.isNoAlbum = isNoAlbum;
-	}
-	
-	public final AlbumPreference getOuterClass(){
-		return this;
-	}
-	
 	public AlbumPreference(Context context, AttributeSet attrs)
 	{
 		super(context, attrs);
@@ -102,6 +76,35 @@ public class AlbumPreference extends ListPreference
 		super(context);
 	}
 
+	/**
+	 * Fetch album list in the background so the picker opens right away,
+	 * called when the user changed the account
+	 *
+	 * @param context Application context
+	 */
+	public static void prefetch(final Context context)
+	{
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+		final String email      = prefs.getString("email", "").trim();
+		final String password   = prefs.getString("password", "").trim();
+
+		if (email.length() == 0 || password.length() == 0 || !CheckInternet.getInstance().canConnect(context, prefs)) {
+			return;
+		}
+
+		new Thread(new Runnable() {
+			@Override
+			public void run()
+			{
+				String auth = AuthTokenCache.getInstance().get(email, password, context);
+
+				if (auth != null) {
+					AlbumFeedCache.getInstance(context).refresh(auth, email);
+				}
+			}
+		}, "AlbumFeedRefresh").start();
+	}
+
 	/**
 	 * User clicked on album preference in user preferences
 	 */
@@ -110,8 +113,8 @@ public class AlbumPreference extends ListPreference
 	{
 		// get user preferences and then the user email and password
 		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this.getContext());
-		final String email            = prefs.getString("email", "").trim();
-		final String password         = prefs.getString("password", "").trim();
+		String email            = prefs.getString("email", "").trim();
+		String password         = prefs.getString("password", "").trim();
 
 		// if no email and password are set we can't authenticate with google to
 		// retrieve list of albums
@@ -120,170 +123,162 @@ public class AlbumPreference extends ListPreference
 			return;
 		}
 
+		// show cached albums right away and refresh them in the background,
+		// changes show up the next time the picker is opened
+		AlbumFeedCache cache = AlbumFeedCache.getInstance(getContext());
+
+		if (cache.load(email)) {
+			setEntries(cache.getAlbumNames());
+			setEntryValues(cache.getAlbumIds());
+			showDialog(null);
+			prefetch(getContext());
+			return;
+		}
+
 		// check if we have internet connection to retrieve albums
 		if (!CheckInternet.getInstance().canConnect(getContext(), prefs)) {
 			Utils.textDialog(getContext(), "Notification", "Can't connect to internet to get Picasa albums.\n\nEither internet is down or your connection in this application is set to allow Wi-Fi only.");
 			return;
 		}
 
-		// authenticate with google and get new authentication string
+		// albums are already being loaded
+		if (loader != null) {
+			return;
+		}
 
-		
-		class Asyctast extends AsyncTask<String, Integer, Integer>
-		{
-			@Override
-			protected void onPreExecute() {
-				//main.progressBar.setVisibility(View.VISIBLE);
-			}
+		// authenticate and load albums in the background
+		loader = new AlbumLoader(cache, email, password);
+		loader.execute();
+	}
 
-			@Override
-			protected Integer doInBackground(String... params) {
-				// TODO Auto-generated method stub
-
-
-				Log.d("Asynctask", ""+params);  
-				Looper.prepare();   
-				GoogleAuthentication google = new GoogleAuthentication(email, password, getContext());
-				String auth                 = google.getAuthenticationString();
-				getOuterClass().setAuth(auth);
-				Log.e("info Asyctast ", "auth value : " + auth);
-				getOuterClass().setIsDone(true);
-				Looper.loop();
-				
-				return null;
-			}
+	/**
+	 * Task that authenticates and loads albums in the background while a
+	 * progress dialog is shown. Entries are filled as albums arrive, the
+	 * picker opens when the feed was read
+	 */
+	private class AlbumLoader extends AsyncTask<Void, CharSequence, Integer>
+	{
+		/**
+		 * Cache that receives the albums
+		 */
+		private AlbumFeedCache cache;
 
-			@Override
-			protected void onPostExecute(Integer result) {
-				//getOuterClass().setIsDone(true);
-			}  
+		/**
+		 * User google e-mail
+		 */
+		private String email;
+
+		/**
+		 * User google password
+		 */
+		private String password;
+
+		/**
+		 * Dialog shown while loading
+		 */
+		private ProgressDialog progress;
+
+		/**
+		 * Album id's that arrived so far
+		 */
+		private List<CharSequence> ids = new ArrayList<CharSequence>();
+
+		/**
+		 * Album names that arrived so far
+		 */
+		private List<CharSequence> names = new ArrayList<CharSequence>();
+
+		/**
+		 * Constructor
+		 *
+		 * @param cache Cache that receives the albums
+		 * @param email User google e-mail
+		 * @param password User google password
+		 */
+		public AlbumLoader(AlbumFeedCache cache, String email, String password)
+		{
+			this.cache    = cache;
+			this.email    = email;
+			this.password = password;
 		}
-		
-		// retrieve auth in a background process
-		//Asyctast asycnAuth = new Asyctast();
-		//asycnAuth.execute("test");
-		
-		class AsyncRetrieveAlbum extends AsyncTask<String, Integer, Integer>
+
+		@Override
+		protected void onPreExecute()
 		{
-			@Override
-			protected void onPreExecute() {
-				//main.progressBar.setVisibility(View.VISIBLE);
+			progress = ProgressDialog.show(getContext(), "Picasa albums", "Loading albums...", true, false, null);
+		}
+
+		@Override
+		protected Integer doInBackground(Void... params)
+		{
+			String auth = AuthTokenCache.getInstance().get(email, password, getContext());
+
+			// if authentication string is null it means we failed authentication
+			if (auth == null) {
+				return RESULT_AUTH_FAILED;
 			}
 
-			@Override
-			protected Integer doInBackground(String... params) {
-			
-				Log.d("AsyncRetrieveAlbum", ""+params);
-				Looper.prepare();   
-				Log.e("info AsyncRetrieveAlbum ", "start fetching.....");
-				// get picasa album list
-				AlbumList list = new AlbumList(getOuterClass().getAuth(), email);
-				getOuterClass().setList(list);
-				
-				// check if any albums were found
-				if (list.fetchAlbumList() == false) {
-					getOuterClass().setIsNoAlbum(true);
-				} else {
-					getOuterClass().setIsNoAlbum(false);
+			// check if any albums were found, they are stored in the cache and
+			// passed on while the feed is read
+			boolean fetched = cache.refresh(auth, email, new AlbumList.Listener() {
+				@Override
+				public void album(String id, String name)
+				{
+					publishProgress(id, name);
 				}
-				
-				Log.e("info AsyncRetrieveAlbum ", "auth value : " + getOuterClass().getAuth());
-				getOuterClass().setIsAlbumRetrieveDone(true);
-				Looper.loop();
-				
-				return null;
+			});
+
+			if (!fetched || cache.getAlbumIds().length == 0) {
+				return RESULT_NO_ALBUMS;
 			}
 
-			@Override
-			protected void onPostExecute(Integer result) {
-				//getOuterClass().setIsDone(true);
-			}  
+			return RESULT_OK;
 		}
-		
-		final Thread workerAuth = new Thread(new Runnable(){
-            @Override
-            public void run()
-            {
-            	Log.d("retrieveAUTH", "Thread run() : started");
-            	GoogleAuthentication google = new GoogleAuthentication(email, password, getContext());
-				String auth                 = google.getAuthenticationString();
-				getOuterClass().setAuth(auth);
-				Log.e("info Asyctast ", "auth value : " + auth);
-				getOuterClass().setIsDone(true);
-				Log.d("retrieveAUTH", "Thread run() : finished");
-            }
-
-        });
-        workerAuth.start();
-
-		while (this.getIsDone() == false){
+
+		@Override
+		protected void onProgressUpdate(CharSequence... album)
+		{
+			ids.add(album[0]);
+			names.add(album[1]);
+
+			// fill entries with albums that arrived so far
+			setEntries(names.toArray(new CharSequence[names.size()]));
+			setEntryValues(ids.toArray(new CharSequence[ids.size()]));
+
 			try {
-				Thread.sleep(2000);
-				if (this.getIsDone() == true) {
-					// if authentication string is null it means we failed authentication
-					if (auth == null) {
-						Utils.textDialog(getContext(), "Notification", "Google authentication failed.\n\nCheck your e-mail and password.");
-						return;
-					}
-
-					// retrieve album in a background process
-					//new AsyncRetrieveAlbum().execute("test");
-					final Thread worker = new Thread(new Runnable(){
-			            @Override
-			            public void run()
-			            {
-			                Log.d("retrievealbum", "Thread run() : started");
-			                AlbumList list = new AlbumList(getOuterClass().getAuth(), email);
-							getOuterClass().setList(list);
-							
-							// check if any albums were found
-							if (list.fetchAlbumList() == false) {
-								getOuterClass().setIsNoAlbum(true);
-							} else {
-								getOuterClass().setIsNoAlbum(false);
-							}
-							
-							Log.e("info AsyncRetrieveAlbum ", "auth value : " + getOuterClass().getAuth());
-							getOuterClass().setIsAlbumRetrieveDone(true);
-							Log.d("retrievealbum", "Thread run() :  finished");
-			            }
-
-			        });
-			        worker.start();
-					
-					while (this.getIsAlbumRetrieveDone() == false){
-						
-						Thread.sleep(2000);
-						if (this.getIsAlbumRetrieveDone() == true) {
-							
-							if (this.getIsNoAlbum()) {
-								Utils.textDialog(getContext(), "Notification", "No Picasa albums found. Create one first.");
-								return;
-							}
-								
-							// user can choose
-							setEntries(list.getAlbumNames());
-							setEntryValues(list.getAlbumIds());
-
-							// call parent function to show preference dialog
-							showDialog(null);
-							this.setIsAlbumRetrieveDone(false);
-							break;
-						}
-						Log.e("info AsyncRetrieveAlbum ", "looping...");
-					} 
-					//asycnAuth.cancel(true);
-					this.setIsDone(false);
-					break;
-				}
-				Log.e("info AsyncAUTH ", "looping...");
-			} catch (InterruptedException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+				progress.setMessage("Loaded "+ids.size()+" albums...");
+			} catch (Exception e) {
 			}
-		} 
+		}
 
-		
+		@Override
+		protected void onPostExecute(Integer result)
+		{
+			loader = null;
+
+			// settings screen may be gone while albums were loaded
+			try {
+				progress.dismiss();
+			} catch (Exception e) {
+				return;
+			}
+
+			if (result == RESULT_AUTH_FAILED) {
+				Utils.textDialog(getContext(), "Notification", "Google authentication failed.\n\nCheck your e-mail and password.");
+				return;
+			}
+
+			if (result == RESULT_NO_ALBUMS) {
+				Utils.textDialog(getContext(), "Notification", "No Picasa albums found. Create one first.");
+				return;
+			}
+
+			// user can choose
+			setEntries(cache.getAlbumNames());
+			setEntryValues(cache.getAlbumIds());
+
+			// call parent function to show preference dialog
+			showDialog(null);
+		}
 	}
 }
-
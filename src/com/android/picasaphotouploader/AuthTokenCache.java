@@ -0,0 +1,140 @@
+/**
+ * This file is part of Picasa Photo Uploader.
+ *
+ * Picasa Photo Uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Picasa Photo Uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Picasa Photo Uploader. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.android.picasaphotouploader;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Class to cache Google authentication string. Callers share one token
+ * until it expires or is rejected by the server, concurrent callers wait
+ * for one refresh instead of each authenticating on their own
+ */
+public class AuthTokenCache
+{
+  /**
+   * Singleton that refers to this class
+   */
+  private static AuthTokenCache instance;
+
+  /**
+   * Time a token is used before it is refreshed
+   */
+  private static final long TOKEN_TTL = 6 * 60 * 60 * 1000L;
+
+  /**
+   * Credentials the token belongs to
+   */
+  private String credentials;
+
+  /**
+   * Cached token, null if there is none
+   */
+  private String token;
+
+  /**
+   * Time at which cached token expires in milliseconds since boot
+   */
+  private long expires = 0;
+
+  /**
+   * Constructor
+   */
+  private AuthTokenCache() {}
+
+  /**
+   * Singleton function
+   *
+   * @return Instance of this class
+   */
+  public static synchronized AuthTokenCache getInstance()
+  {
+    if (instance == null) {
+      instance = new AuthTokenCache();
+    }
+
+    return instance;
+  }
+
+  /**
+   * Block cloning since we use singleton
+   *
+   * @return
+   * @throws CloneNotSupportedException
+   */
+  @Override
+  public Object clone() throws CloneNotSupportedException
+  {
+    throw new CloneNotSupportedException();
+  }
+
+  /**
+   * Get authentication string for credentials in user preferences
+   *
+   * @param prefs User preferences
+   * @param context Application context
+   * @return Google authentication string or null if authentication failed
+   */
+  public String get(SharedPreferences prefs, Context context)
+  {
+    return get(prefs.getString("email", ""), prefs.getString("password", ""), context);
+  }
+
+  /**
+   * Get authentication string, only authenticates when there is no valid
+   * cached token. Callers that arrive during a refresh wait for it and
+   * get its result. Failures are not cached, callers back off themselves
+   *
+   * @param email User google e-mail
+   * @param password User google password
+   * @param context Application context
+   * @return Google authentication string or null if authentication failed
+   */
+  public synchronized String get(String email, String password, Context context)
+  {
+    String key = email+"\n"+password;
+
+    if (token != null && key.equals(credentials) && SystemClock.elapsedRealtime() < expires) {
+      return token;
+    }
+
+    long start  = SystemClock.elapsedRealtime();
+    token       = new GoogleAuthentication(email, password, context).getAuthenticationString();
+    credentials = key;
+    expires     = token != null ? SystemClock.elapsedRealtime() + TOKEN_TTL : 0;
+
+    Log.i("AuthTokenCache", "Authentication "+(token != null ? "refreshed" : "failed")+" in "+(SystemClock.elapsedRealtime() - start)+" ms");
+
+    return token;
+  }
+
+  /**
+   * Drop token that was rejected by the server. Only the cached token is
+   * dropped, so callers holding the same rejected token cause one refresh
+   *
+   * @param rejected Token that was rejected
+   */
+  public synchronized void invalidate(String rejected)
+  {
+    if (rejected != null && rejected.equals(token)) {
+      token   = null;
+      expires = 0;
+    }
+  }
+}
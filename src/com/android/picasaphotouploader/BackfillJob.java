@@ -0,0 +1,462 @@
+/**
+ * This file is part of Picasa Photo Uploader.
+ *
+ * Picasa Photo Uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Picasa Photo Uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Picasa Photo Uploader. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.android.picasaphotouploader;
+
+import com.PicasaPhotoUpload.PicasaPhotoUploadActivity;
+import com.PicasaPhotoUpload.R;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.os.Process;
+import android.preference.PreferenceManager;
+import android.provider.MediaStore.Images.Media;
+import android.util.Log;
+
+import java.io.File;
+
+/**
+ * Class to upload images that were on the device before the application was
+ * installed. The image table is walked in pages of ids, after each page the
+ * position is stored so the job can be paused and resumed, also across
+ * restarts of the application
+ */
+public class BackfillJob implements Runnable
+{
+  /**
+   * Singleton that refers to this class
+   */
+  private static BackfillJob instance;
+
+  /**
+   * Name of preferences file
+   */
+  private static final String PREFS_NAME = "backfill";
+
+  /**
+   * Number of rows read per query
+   */
+  private static final int PAGE_SIZE = 50;
+
+  /**
+   * Images are only handed to the engine while fewer are waiting
+   */
+  private static final int MAX_BACKLOG = 4;
+
+  /**
+   * Unique id for backfill notification
+   */
+  private static final int NOTIFICATION_ID = 999999998;
+
+  /**
+   * Columns read for each image
+   */
+  private static final String[] COLUMNS = new String[]{ Media._ID, Media.DATA, Media.DISPLAY_NAME, Media.MIME_TYPE, Media.SIZE };
+
+  /**
+   * Only images that have a file on the sdcard within the backfill range
+   */
+  private static final String SELECTION = Media._ID+" > ? AND "+Media._ID+" <= ? AND "+Media.MIME_TYPE+" LIKE 'image/%' AND "+Media.DATA+" NOT NULL";
+
+  /**
+   * Application context
+   */
+  private Context context;
+
+  /**
+   * Stored position of the job
+   */
+  private SharedPreferences state;
+
+  /**
+   * Thread that runs the job, a thread that is no longer referred to here
+   * stops after the current image
+   */
+  private Thread thread;
+
+  /**
+   * Monitor the job waits on for a connection and an album
+   */
+  private final Object signal = new Object();
+
+  /**
+   * Wakes up job when network changed
+   */
+  private ConnectivityMonitor.Listener connectivity = new ConnectivityMonitor.Listener() {
+    @Override
+    public void connectivityChanged(Context context)
+    {
+      wake();
+    }
+  };
+
+  /**
+   * Wakes up job when album or connection preference changed, held here
+   * because preferences only keep a weak reference
+   */
+  private SharedPreferences.OnSharedPreferenceChangeListener preferences = new SharedPreferences.OnSharedPreferenceChangeListener() {
+    @Override
+    public void onSharedPreferenceChanged(SharedPreferences prefs, String key)
+    {
+      wake();
+    }
+  };
+
+  /**
+   * Constructor
+   */
+  private BackfillJob() {}
+
+  /**
+   * Singleton function
+   *
+   * @return Instance of this class
+   */
+  public static synchronized BackfillJob getInstance()
+  {
+    if (instance == null) {
+      instance = new BackfillJob();
+    }
+
+    return instance;
+  }
+
+  /**
+   * Block cloning since we use singleton
+   *
+   * @return
+   * @throws CloneNotSupportedException
+   */
+  @Override
+  public Object clone() throws CloneNotSupportedException
+  {
+    throw new CloneNotSupportedException();
+  }
+
+  /**
+   * Start job or resume it from the stored position. A new job covers all
+   * images up to the given id, newer images are found by the scanner
+   *
+   * @param context Application context
+   * @param upperId Highest image id of the job
+   */
+  public synchronized void start(Context context, int upperId)
+  {
+    if (isRunning()) {
+      return;
+    }
+
+    this.context = context.getApplicationContext();
+    this.state   = this.context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+
+    if (!state.getBoolean("active", false)) {
+      state.edit()
+        .putBoolean("active", true)
+        .putInt("last_id", -1)
+        .putInt("upper_id", upperId)
+        .putInt("done", 0)
+        .putInt("total", count(-1, upperId))
+        .commit();
+    }
+
+    thread = new Thread(this, "Backfill");
+    thread.start();
+  }
+
+  /**
+   * Start a new job over all images up to the given id, a running or
+   * paused job is dropped. Used when the media database changed and ids of
+   * the old job mean nothing anymore
+   *
+   * @param context Application context
+   * @param upperId Highest image id of the job
+   */
+  public synchronized void reconcile(Context context, int upperId)
+  {
+    pause();
+
+    context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit().putBoolean("active", false).commit();
+    start(context, upperId);
+  }
+
+  /**
+   * Resume job if it was running when the application stopped
+   *
+   * @param context Application context
+   */
+  public synchronized void resume(Context context)
+  {
+    if (context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).getBoolean("active", false)) {
+      start(context, -1);
+    }
+  }
+
+  /**
+   * Pause job, the stored position is kept
+   */
+  public synchronized void pause()
+  {
+    if (!isRunning()) {
+      return;
+    }
+
+    thread.interrupt();
+    thread = null;
+  }
+
+  /**
+   * Check if job is running
+   *
+   * @return If job is running
+   */
+  public synchronized boolean isRunning()
+  {
+    return thread != null && thread.isAlive();
+  }
+
+  /**
+   * Check if calling thread is the one that runs the job. A thread that
+   * was paused while it was not waiting keeps running until it checks
+   * this, so it never works next to the thread of a new start
+   *
+   * @return If calling thread runs the job
+   */
+  private synchronized boolean isCurrent()
+  {
+    return thread == Thread.currentThread();
+  }
+
+  /**
+   * Walk image table from stored position and hand images to the engine
+   */
+  @Override
+  public void run()
+  {
+    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+    SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+    UploadEngine engine     = UploadEngine.getInstance();
+    int lastId              = state.getInt("last_id", -1);
+    int upperId             = state.getInt("upper_id", -1);
+    int done                = state.getInt("done", 0);
+    int total               = state.getInt("total", 0);
+
+    Log.i("Backfill", "Starting after id "+lastId+", "+done+" of "+total+" images done");
+
+    ConnectivityMonitor.getInstance().addListener(connectivity);
+    prefs.registerOnSharedPreferenceChangeListener(preferences);
+
+    try {
+      while (isCurrent()) {
+        Cursor cursor = context.getContentResolver().query(Media.EXTERNAL_CONTENT_URI, COLUMNS, SELECTION,
+          new String[]{ Integer.toString(lastId), Integer.toString(upperId) }, Media._ID+" ASC LIMIT "+PAGE_SIZE);
+
+        if (cursor == null) {
+          break;
+        }
+
+        int rows = 0;
+
+        try {
+          int idColumn   = cursor.getColumnIndex(Media._ID);
+          int pathColumn = cursor.getColumnIndex(Media.DATA);
+          int nameColumn = cursor.getColumnIndex(Media.DISPLAY_NAME);
+          int typeColumn = cursor.getColumnIndex(Media.MIME_TYPE);
+          int sizeColumn = cursor.getColumnIndex(Media.SIZE);
+
+          while (cursor.moveToNext()) {
+            ImageItem item = new ImageItem();
+            item.prefs     = prefs;
+            item.imageId   = cursor.getInt(idColumn);
+            item.imagePath = cursor.getString(pathColumn);
+            item.imageName = cursor.getString(nameColumn);
+            item.imageType = cursor.getString(typeColumn);
+            item.imageSize = cursor.getInt(sizeColumn);
+
+            // wait until engine has room and images can be uploaded
+            awaitCapacity(engine, prefs);
+
+            if (needsUpload(engine, item, prefs.getString("album", ""))) {
+              engine.submit(item, null);
+            }
+
+            lastId = item.imageId;
+            rows++;
+            done++;
+          }
+        } finally {
+          cursor.close();
+        }
+
+        // paused while reading the page, new thread continues from stored
+        // position
+        if (!isCurrent()) {
+          throw new InterruptedException();
+        }
+
+        // store position after each page
+        state.edit().putInt("last_id", lastId).putInt("done", done).commit();
+        notify(done, total);
+
+        // last page was not full so there are no more rows
+        if (rows < PAGE_SIZE) {
+          state.edit().putBoolean("active", false).commit();
+          notify(done, done);
+          Log.i("Backfill", "Finished, "+done+" images checked");
+          break;
+        }
+      }
+    } catch (InterruptedException e) {
+      // paused, position of last completed page is kept. The notification
+      // belongs to a new thread if the job was started again
+      if (!isRunning()) {
+        ((NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE)).cancel(NOTIFICATION_ID);
+      }
+    } catch (Exception e) {
+      Log.e("Backfill", "Stopped after id "+lastId, e);
+    } finally {
+      ConnectivityMonitor.getInstance().removeListener(connectivity);
+      prefs.unregisterOnSharedPreferenceChangeListener(preferences);
+    }
+  }
+
+  /**
+   * Check if image still has to be uploaded
+   *
+   * @param engine Upload engine
+   * @param item Image queue item
+   * @param album Album images are uploaded to
+   * @return If image has to be uploaded
+   */
+  private boolean needsUpload(UploadEngine engine, ImageItem item, String album)
+  {
+    File file = new File(item.imagePath);
+
+    if (!file.canRead() || engine.getState(item.imageId) != -1) {
+      return false;
+    }
+
+    return !DedupIndex.getInstance(context).isUploaded(file, album);
+  }
+
+  /**
+   * Wait while engine is busy, there is no connection or no album is set.
+   * Nothing is polled, the job is woken up by the engine, the connectivity
+   * monitor and preference changes
+   *
+   * @param engine Upload engine
+   * @param prefs User preferences
+   * @throws InterruptedException When job is paused
+   */
+  private void awaitCapacity(UploadEngine engine, SharedPreferences prefs) throws InterruptedException
+  {
+    while (true) {
+      synchronized (signal) {
+        while (!canUpload(prefs)) {
+          if (!isCurrent()) {
+            throw new InterruptedException();
+          }
+
+          signal.wait();
+        }
+      }
+
+      engine.awaitQueueDepth(MAX_BACKLOG);
+
+      // network or album may have changed while engine was busy
+      if (canUpload(prefs)) {
+        break;
+      }
+    }
+
+    if (!isCurrent()) {
+      throw new InterruptedException();
+    }
+  }
+
+  /**
+   * Check if images can be uploaded now
+   *
+   * @param prefs User preferences
+   * @return If there is a connection and an album is set
+   */
+  private boolean canUpload(SharedPreferences prefs)
+  {
+    return CheckInternet.getInstance().canConnect(context, prefs) && prefs.getString("album", "").trim().length() > 0;
+  }
+
+  /**
+   * Wake up job that waits for a connection or an album
+   */
+  private void wake()
+  {
+    synchronized (signal) {
+      signal.notifyAll();
+    }
+  }
+
+  /**
+   * Count images in range
+   *
+   * @param lastId Images above this id
+   * @param upperId Images up to this id
+   * @return Number of images
+   */
+  private int count(int lastId, int upperId)
+  {
+    Cursor cursor = context.getContentResolver().query(Media.EXTERNAL_CONTENT_URI, new String[]{ "count(*)" }, SELECTION,
+      new String[]{ Integer.toString(lastId), Integer.toString(upperId) }, null);
+
+    if (cursor == null) {
+      return 0;
+    }
+
+    try {
+      return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+    } finally {
+      cursor.close();
+    }
+  }
+
+  /**
+   * Show progress of job
+   *
+   * @param done Number of images checked
+   * @param total Number of images in job
+   */
+  @SuppressWarnings("deprecation")
+  private void notify(int done, int total)
+  {
+    NotificationManager manager = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+    Notification notification   = new Notification(R.drawable.ic_launcher, null, System.currentTimeMillis());
+    Intent intent               = new Intent(context, PicasaPhotoUploadActivity.class);
+    intent.setFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP|Intent.FLAG_ACTIVITY_SINGLE_TOP);
+
+    if (done < total) {
+      notification.flags |= Notification.FLAG_ONGOING_EVENT;
+    } else {
+      notification.flags |= Notification.FLAG_AUTO_CANCEL;
+    }
+
+    notification.setLatestEventInfo(context, "Uploading photo library", done+" of "+total+" photos checked", PendingIntent.getActivity(context, 0, intent, 0));
+    manager.notify(NOTIFICATION_ID, notification);
+  }
+}
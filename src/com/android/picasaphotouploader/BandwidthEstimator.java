@@ -0,0 +1,223 @@
+/**
+ * This file is part of Picasa Photo Uploader.
+ *
+ * Picasa Photo Uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Picasa Photo Uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Picasa Photo Uploader. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.android.picasaphotouploader;
+
+import android.util.Log;
+
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.params.HttpConnectionParams;
+
+/**
+ * Class to estimate upload throughput of the current network. Samples of
+ * running and finished transfers are averaged with an exponentially
+ * weighted moving average per network class. Timeouts of upload requests
+ * and the threshold at which a transfer counts as stalled are derived
+ * from the estimate and the size of the request
+ */
+public class BandwidthEstimator
+{
+  /**
+   * Singleton that refers to this class
+   */
+  private static BandwidthEstimator instance;
+
+  /**
+   * Weight of a new sample
+   */
+  private static final double ALPHA = 0.3;
+
+  /**
+   * Samples shorter than this are not reliable
+   */
+  private static final long MIN_SAMPLE_MILLIS = 250;
+
+  /**
+   * Samples smaller than this are not reliable
+   */
+  private static final long MIN_SAMPLE_BYTES = 16 * 1024;
+
+  /**
+   * Estimate per network class before the first sample, on the low side
+   * so first timeouts are generous
+   */
+  private static final double[] DEFAULT_RATE = new double[]{ 256 * 1024, 32 * 1024, 8 * 1024 };
+
+  /**
+   * Shortest connect timeout
+   */
+  private static final int MIN_CONNECT_TIMEOUT = 5000;
+
+  /**
+   * Longest connect timeout
+   */
+  private static final int MAX_CONNECT_TIMEOUT = 30000;
+
+  /**
+   * Shortest time to wait for a response
+   */
+  private static final int MIN_READ_TIMEOUT = 10000;
+
+  /**
+   * Longest time to wait for a response
+   */
+  private static final int MAX_READ_TIMEOUT = 120000;
+
+  /**
+   * Shortest time without progress before a transfer stalled
+   */
+  private static final long MIN_STALL_MILLIS = 5000;
+
+  /**
+   * Longest time without progress before a transfer stalled
+   */
+  private static final long MAX_STALL_MILLIS = 60000;
+
+  /**
+   * Bytes that should move within the stall threshold
+   */
+  private static final long STALL_WINDOW_BYTES = 16 * 1024;
+
+  /**
+   * Estimated bytes per second per network class
+   */
+  private double[] rates = DEFAULT_RATE.clone();
+
+  /**
+   * Constructor
+   */
+  private BandwidthEstimator() {}
+
+  /**
+   * Singleton function
+   *
+   * @return Instance of this class
+   */
+  public static synchronized BandwidthEstimator getInstance()
+  {
+    if (instance == null) {
+      instance = new BandwidthEstimator();
+    }
+
+    return instance;
+  }
+
+  /**
+   * Block cloning since we use singleton
+   *
+   * @return
+   * @throws CloneNotSupportedException
+   */
+  @Override
+  public Object clone() throws CloneNotSupportedException
+  {
+    throw new CloneNotSupportedException();
+  }
+
+  /**
+   * Add sample of a transfer on the current network
+   *
+   * @param bytes Bytes transferred
+   * @param millis Time it took
+   */
+  public synchronized void sample(long bytes, long millis)
+  {
+    if (bytes < MIN_SAMPLE_BYTES || millis < MIN_SAMPLE_MILLIS) {
+      return;
+    }
+
+    int networkClass    = NetworkPolicy.currentClass();
+    double rate         = bytes * 1000.0 / millis;
+    rates[networkClass] = ALPHA * rate + (1 - ALPHA) * rates[networkClass];
+  }
+
+  /**
+   * Get estimated upload throughput of a single transfer on the current
+   * network, limited by the bandwidth cap
+   *
+   * @return Bytes per second
+   */
+  public synchronized long getBytesPerSecond()
+  {
+    long rate = (long)rates[NetworkPolicy.currentClass()];
+    long cap  = BandwidthLimiter.getInstance().getRate();
+
+    return Math.max(1, cap > 0 ? Math.min(rate, cap) : rate);
+  }
+
+  /**
+   * Get time to wait for a connection, enough to move a handshake worth of
+   * data at the estimated rate
+   *
+   * @return Timeout in milliseconds
+   */
+  public int getConnectTimeout()
+  {
+    return (int)clamp(MIN_CONNECT_TIMEOUT + 64 * 1024 * 1000L / getBytesPerSecond(), MIN_CONNECT_TIMEOUT, MAX_CONNECT_TIMEOUT);
+  }
+
+  /**
+   * Get time to wait for data from server, grows with the time the server
+   * needs to take in the request
+   *
+   * @param size Size of request body in bytes
+   * @return Timeout in milliseconds
+   */
+  public int getReadTimeout(long size)
+  {
+    return (int)clamp(MIN_READ_TIMEOUT + size * 1000 / getBytesPerSecond() / 2, MIN_READ_TIMEOUT, MAX_READ_TIMEOUT);
+  }
+
+  /**
+   * Get time without progress after which a transfer is aborted
+   *
+   * @return Threshold in milliseconds
+   */
+  public long getStallMillis()
+  {
+    return clamp(4 * STALL_WINDOW_BYTES * 1000 / getBytesPerSecond(), MIN_STALL_MILLIS, MAX_STALL_MILLIS);
+  }
+
+  /**
+   * Set timeouts of request from estimate and size of request body
+   *
+   * @param request Request
+   * @param size Size of request body in bytes
+   */
+  public void apply(HttpRequestBase request, long size)
+  {
+    int connect = getConnectTimeout();
+    int read    = getReadTimeout(size);
+
+    HttpConnectionParams.setConnectionTimeout(request.getParams(), connect);
+    HttpConnectionParams.setSoTimeout(request.getParams(), read);
+
+    Log.d("BandwidthEstimator", "Estimate "+(getBytesPerSecond() / 1024)+" KB/s, timeouts "+connect+"/"+read+" ms for "+size+" bytes");
+  }
+
+  /**
+   * Limit value to range
+   *
+   * @param value Value
+   * @param min Lowest value
+   * @param max Highest value
+   * @return Limited value
+   */
+  private static long clamp(long value, long min, long max)
+  {
+    return Math.max(min, Math.min(max, value));
+  }
+}
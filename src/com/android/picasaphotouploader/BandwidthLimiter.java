@@ -0,0 +1,223 @@
+/**
+ * This file is part of Picasa Photo Uploader.
+ *
+ * Picasa Photo Uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Picasa Photo Uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Picasa Photo Uploader. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.android.picasaphotouploader;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Token bucket that limits the upload rate of all uploads together. The
+ * rate depends on the kind of network and can change while uploads are
+ * running. Threads that have to wait for tokens sleep on the bucket until
+ * enough tokens are available, they never spin
+ */
+public class BandwidthLimiter implements SharedPreferences.OnSharedPreferenceChangeListener
+{
+  /**
+   * Singleton that refers to this class
+   */
+  private static BandwidthLimiter instance;
+
+  /**
+   * Largest burst in seconds of rate
+   */
+  private static final float BURST_SECONDS = 0.5f;
+
+  /**
+   * Application context
+   */
+  private Context context;
+
+  /**
+   * Allowed rate in bytes per second, 0 means unlimited
+   */
+  private long rate = 0;
+
+  /**
+   * Available tokens, negative when uploads took more than was available
+   */
+  private double tokens = 0;
+
+  /**
+   * Time tokens were last added
+   */
+  private long refilled = System.nanoTime();
+
+  /**
+   * Constructor
+   */
+  private BandwidthLimiter() {}
+
+  /**
+   * Singleton function
+   *
+   * @return Instance of this class
+   */
+  public static synchronized BandwidthLimiter getInstance()
+  {
+    if (instance == null) {
+      instance = new BandwidthLimiter();
+    }
+
+    return instance;
+  }
+
+  /**
+   * Block cloning since we use singleton
+   *
+   * @return
+   * @throws CloneNotSupportedException
+   */
+  @Override
+  public Object clone() throws CloneNotSupportedException
+  {
+    throw new CloneNotSupportedException();
+  }
+
+  /**
+   * Start following the limits in the user preferences
+   *
+   * @param context Application context
+   */
+  public synchronized void start(Context context)
+  {
+    if (this.context != null) {
+      return;
+    }
+
+    this.context = context.getApplicationContext();
+    PreferenceManager.getDefaultSharedPreferences(this.context).registerOnSharedPreferenceChangeListener(this);
+    update();
+  }
+
+  /**
+   * Read limit for the current network from its policy
+   */
+  public synchronized void update()
+  {
+    if (context == null) {
+      return;
+    }
+
+    // make sure snapshot is current when monitor doesn't run
+    if (!ConnectivityMonitor.getInstance().isStarted()) {
+      ConnectivityMonitor.getInstance().refresh(context);
+    }
+
+    setRate(NetworkPolicy.current(PreferenceManager.getDefaultSharedPreferences(context)).getBandwidthLimit());
+  }
+
+  /**
+   * User changed a preference, change rate of running uploads
+   *
+   * @param prefs User preferences
+   * @param key Changed preference
+   */
+  @Override
+  public void onSharedPreferenceChanged(SharedPreferences prefs, String key)
+  {
+    if (key.startsWith("limit_")) {
+      update();
+    }
+  }
+
+  /**
+   * Set allowed rate and wake up waiting uploads so they use the new rate
+   *
+   * @param rate Rate in bytes per second, 0 for unlimited
+   */
+  public synchronized void setRate(long rate)
+  {
+    if (rate == this.rate) {
+      return;
+    }
+
+    refill();
+    Log.i("BandwidthLimiter", "Upload limit "+(rate == 0 ? "off" : rate / 1024+" KB/s"));
+
+    this.rate   = rate;
+    this.tokens = Math.min(tokens, getCapacity());
+    notifyAll();
+  }
+
+  /**
+   * Get allowed rate
+   *
+   * @return Rate in bytes per second, 0 for unlimited
+   */
+  public synchronized long getRate()
+  {
+    return rate;
+  }
+
+  /**
+   * Take tokens for bytes that are about to be sent, waits until tokens
+   * are available. Tokens may go negative so writes larger than the bucket
+   * are possible, the next writer waits for the debt to be paid off
+   *
+   * @param bytes Number of bytes about to be sent
+   * @throws InterruptedIOException When upload was aborted while waiting
+   */
+  public synchronized void acquire(int bytes) throws InterruptedIOException
+  {
+    while (rate > 0) {
+      refill();
+
+      if (tokens > 0) {
+        tokens -= bytes;
+        return;
+      }
+
+      // sleep until debt is paid off, setRate() wakes us up early
+      long wait = (long)Math.ceil(-tokens * 1000 / rate);
+
+      try {
+        wait(Math.max(1, wait));
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException("Upload aborted while throttled");
+      }
+    }
+  }
+
+  /**
+   * Add tokens for the time passed since last refill
+   */
+  private void refill()
+  {
+    long now = System.nanoTime();
+
+    if (rate > 0) {
+      tokens = Math.min(getCapacity(), tokens + (now - refilled) / 1e9 * rate);
+    }
+
+    refilled = now;
+  }
+
+  /**
+   * Get maximum number of tokens in the bucket
+   *
+   * @return Bucket capacity in bytes
+   */
+  private double getCapacity()
+  {
+    return Math.max(4096, rate * BURST_SECONDS);
+  }
+}
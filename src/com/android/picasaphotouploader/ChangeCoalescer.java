@@ -0,0 +1,172 @@
+/**
+ * This file is part of Picasa Photo Uploader.
+ *
+ * Picasa Photo Uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Picasa Photo Uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Picasa Photo Uploader. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.android.picasaphotouploader;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+
+/**
+ * Class to fold a storm of change events into one flush. A flush runs on a
+ * background thread when no event arrived during the quiet window, or when
+ * the first pending event is older than the maximum delay
+ */
+public class ChangeCoalescer
+{
+  /**
+   * Listener that handles coalesced changes
+   */
+  public interface Listener
+  {
+    /**
+     * Handle pending changes, runs on the thread of the coalescer
+     *
+     * @param firstChange Time of first pending event in milliseconds since boot
+     * @param events Number of events folded into this flush
+     */
+    public void flush(long firstChange, int events);
+  }
+
+  /**
+   * Thread on which events are counted and flushes run
+   */
+  private HandlerThread thread;
+
+  /**
+   * Handler of the thread
+   */
+  private Handler handler;
+
+  /**
+   * Listener that handles coalesced changes
+   */
+  private Listener listener;
+
+  /**
+   * Time without events before a flush
+   */
+  private long quietMillis;
+
+  /**
+   * Maximum time an event waits for a flush
+   */
+  private long maxDelayMillis;
+
+  /**
+   * Time of first pending event, 0 if nothing is pending
+   */
+  private long firstChange = 0;
+
+  /**
+   * Number of pending events
+   */
+  private int pending = 0;
+
+  /**
+   * Number of events that didn't cause a flush of their own
+   */
+  private volatile long coalesced = 0;
+
+  /**
+   * Count event and reschedule flush, runs on the thread of the coalescer
+   */
+  private Runnable change = new Runnable() {
+    @Override
+    public void run()
+    {
+      long now = SystemClock.elapsedRealtime();
+
+      if (pending++ == 0) {
+        firstChange = now;
+      } else {
+        coalesced++;
+      }
+
+      // restart quiet window but never beyond maximum delay
+      long delay = Math.max(0, Math.min(quietMillis, firstChange + maxDelayMillis - now));
+
+      handler.removeCallbacks(flush);
+      handler.postDelayed(flush, delay);
+    }
+  };
+
+  /**
+   * Hand pending events to listener
+   */
+  private Runnable flush = new Runnable() {
+    @Override
+    public void run()
+    {
+      long first = firstChange;
+      int events = pending;
+
+      firstChange = 0;
+      pending     = 0;
+
+      if (events > 0) {
+        listener.flush(first, events);
+      }
+    }
+  };
+
+  /**
+   * Constructor
+   *
+   * @param name Name of the background thread
+   * @param quietMillis Time without events before a flush
+   * @param maxDelayMillis Maximum time an event waits for a flush
+   * @param listener Listener that handles coalesced changes
+   */
+  public ChangeCoalescer(String name, long quietMillis, long maxDelayMillis, Listener listener)
+  {
+    this.quietMillis    = quietMillis;
+    this.maxDelayMillis = maxDelayMillis;
+    this.listener       = listener;
+
+    thread = new HandlerThread(name, Process.THREAD_PRIORITY_BACKGROUND);
+    thread.start();
+
+    handler = new Handler(thread.getLooper());
+  }
+
+  /**
+   * Signal a change, can be called from any thread
+   */
+  public void signal()
+  {
+    handler.post(change);
+  }
+
+  /**
+   * Get number of events that were folded into another flush
+   *
+   * @return Number of coalesced events
+   */
+  public long getCoalesced()
+  {
+    return coalesced;
+  }
+
+  /**
+   * Stop background thread, pending events are dropped
+   */
+  public void quit()
+  {
+    thread.quit();
+  }
+}
@@ -18,8 +18,6 @@ package com.android.picasaphotouploader;
 
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.net.ConnectivityManager;
-import android.net.wifi.WifiManager;
 
 /**
  * Check if internet connection is available
@@ -33,11 +31,6 @@ public class CheckInternet
    */
   private static CheckInternet instance;
 
-  /**
-   * Constant for Wi-FI setting from user preferences
-   */
-  private static final String CON_WIFI = "wifi";
-
   /**
    * Constructor
    */
@@ -71,32 +64,38 @@ public class CheckInternet
 
   /**
    * Can we connect to the internet or not, checks if device has connection
-   * and if wifi is on if user has set that in the connection preference
+   * and if it is Wi-Fi if user has set that in the connection preference.
+   * Uses the snapshot of the connectivity monitor when it is running
    * 
    * @param context Application context
    * @param prefs User preferences
    * @return Can connect to internet or not
    */
-  @SuppressWarnings("static-access")
   public boolean canConnect(Context context, SharedPreferences prefs)
   {
-    // get wifi manager
-    WifiManager wifi = (WifiManager)context.getSystemService(Context.WIFI_SERVICE);
+    ConnectivityMonitor monitor = ConnectivityMonitor.getInstance();
 
-    // if wifi is disabled and the user preference only allows wifi abort
-    if (wifi.getWifiState() != wifi.WIFI_STATE_ENABLED && prefs.getString("connection", "").equals(CON_WIFI)) {
-      return false;
+    if (!monitor.isStarted()) {
+      monitor.refresh(context);
     }
 
-    // get connectivity manager
-    ConnectivityManager manager = (ConnectivityManager)context.getSystemService(Context.CONNECTIVITY_SERVICE);
+    return monitor.canConnect(prefs);
+  }
+
+  /**
+   * Is the active network a Wi-Fi network
+   *
+   * @param context Application context
+   * @return Active network is Wi-Fi or not
+   */
+  public boolean isWifi(Context context)
+  {
+    ConnectivityMonitor monitor = ConnectivityMonitor.getInstance();
 
-    // check if we have active network and that network is connected, if not abort
-    if (manager.getActiveNetworkInfo() == null || !manager.getActiveNetworkInfo().isConnected()) {
-      return false;
+    if (!monitor.isStarted()) {
+      monitor.refresh(context);
     }
 
-    // we can use the internet connection
-    return true;
+    return monitor.isWifi();
   }
 }
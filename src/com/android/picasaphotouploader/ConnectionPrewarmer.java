@@ -0,0 +1,133 @@
+/**
+ * This file is part of Picasa Photo Uploader.
+ *
+ * Picasa Photo Uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Picasa Photo Uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Picasa Photo Uploader. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.android.picasaphotouploader;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import java.net.InetAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.http.HttpHost;
+
+/**
+ * Listener for connectivity changes that prepares connections before the
+ * first upload. When a usable network comes up the upload and
+ * authentication hosts are resolved, an idle connection to the upload host
+ * is put in the pool and a TLS session with the authentication host is
+ * cached. Warming is cancelled when the network changes again
+ */
+public class ConnectionPrewarmer implements ConnectivityMonitor.Listener
+{
+  /**
+   * Host that receives uploads
+   */
+  private static final String UPLOAD_HOST = "picasaweb.google.com";
+
+  /**
+   * Host that handles authentication
+   */
+  private static final String AUTH_HOST = "www.google.com";
+
+  /**
+   * Time a warmed connection may stay idle in the pool
+   */
+  private static final long IDLE_LIFETIME = 30000;
+
+  /**
+   * Timeout for connecting to hosts
+   */
+  private static final int TIMEOUT = 15000;
+
+  /**
+   * Thread that warms connections
+   */
+  private ExecutorService worker = Executors.newSingleThreadExecutor();
+
+  /**
+   * Warming that is running or waiting
+   */
+  private Future<?> current;
+
+  /**
+   * Handle change of connectivity
+   *
+   * @param context Application context
+   */
+  @Override
+  public synchronized void connectivityChanged(Context context)
+  {
+    // connections of previous network are of no use anymore
+    if (current != null) {
+      current.cancel(true);
+      current = null;
+    }
+
+    SharedHttpClient.getInstance().closeIdle();
+
+    // only warm when user preferences allow this network
+    SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+
+    if (!CheckInternet.getInstance().canConnect(context, prefs)) {
+      return;
+    }
+
+    current = worker.submit(new Runnable() {
+      @Override
+      public void run()
+      {
+        warm();
+      }
+    });
+  }
+
+  /**
+   * Resolve hosts and open connections, stops when cancelled
+   */
+  private void warm()
+  {
+    long start = SystemClock.elapsedRealtime();
+
+    try {
+      InetAddress.getAllByName(UPLOAD_HOST);
+      InetAddress.getAllByName(AUTH_HOST);
+
+      if (Thread.interrupted()) {
+        return;
+      }
+
+      SharedHttpClient.getInstance().warm(new HttpHost(UPLOAD_HOST, -1, "http"), IDLE_LIFETIME);
+
+      if (Thread.interrupted()) {
+        return;
+      }
+
+      TlsContext.getInstance().prime(AUTH_HOST, 443, TIMEOUT);
+
+      Log.i("ConnectionPrewarmer", "Connections warmed in "+(SystemClock.elapsedRealtime() - start)+" ms");
+    } catch (InterruptedException e) {
+      // network changed again
+    } catch (Exception e) {
+      Log.w("ConnectionPrewarmer", "Could not warm connections", e);
+    }
+  }
+}
@@ -0,0 +1,221 @@
+/**
+ * This file is part of Picasa Photo Uploader.
+ *
+ * Picasa Photo Uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Picasa Photo Uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Picasa Photo Uploader. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.android.picasaphotouploader;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.util.Log;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Class that keeps a snapshot of the network state. The snapshot is
+ * updated from connectivity broadcasts, so checks before each upload don't
+ * query the system services. Listeners are told when the state changed
+ */
+public class ConnectivityMonitor
+{
+  /**
+   * Listener for changes of the network state
+   */
+  public interface Listener
+  {
+    /**
+     * Network state changed, snapshot is already updated
+     *
+     * @param context Application context
+     */
+    public void connectivityChanged(Context context);
+  }
+
+  /**
+   * Singleton that refers to this class
+   */
+  private static ConnectivityMonitor instance;
+
+  /**
+   * Registered listeners
+   */
+  private List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+  /**
+   * Receiver of connectivity broadcasts, null until started
+   */
+  private BroadcastReceiver receiver;
+
+  /**
+   * If there is a connected network
+   */
+  private volatile boolean connected = false;
+
+  /**
+   * Type of the connected network
+   */
+  private volatile int type = -1;
+
+  /**
+   * If the connected network is roaming
+   */
+  private volatile boolean roaming = false;
+
+  /**
+   * Constructor
+   */
+  private ConnectivityMonitor() {}
+
+  /**
+   * Singleton function
+   *
+   * @return Instance of this class
+   */
+  public static synchronized ConnectivityMonitor getInstance()
+  {
+    if (instance == null) {
+      instance = new ConnectivityMonitor();
+    }
+
+    return instance;
+  }
+
+  /**
+   * Block cloning since we use singleton
+   *
+   * @return
+   * @throws CloneNotSupportedException
+   */
+  @Override
+  public Object clone() throws CloneNotSupportedException
+  {
+    throw new CloneNotSupportedException();
+  }
+
+  /**
+   * Take first snapshot and listen to connectivity broadcasts
+   *
+   * @param context Application context
+   */
+  public synchronized void start(Context context)
+  {
+    if (receiver != null) {
+      return;
+    }
+
+    refresh(context);
+
+    receiver = new BroadcastReceiver() {
+      @Override
+      public void onReceive(Context context, Intent intent)
+      {
+        refresh(context);
+
+        for (Listener listener : listeners) {
+          listener.connectivityChanged(context);
+        }
+      }
+    };
+
+    context.getApplicationContext().registerReceiver(receiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+  }
+
+  /**
+   * Check if snapshot is kept up to date by broadcasts
+   *
+   * @return Monitor was started or not
+   */
+  public synchronized boolean isStarted()
+  {
+    return receiver != null;
+  }
+
+  /**
+   * Update snapshot from connectivity manager
+   *
+   * @param context Application context
+   */
+  public void refresh(Context context)
+  {
+    ConnectivityManager manager = (ConnectivityManager)context.getSystemService(Context.CONNECTIVITY_SERVICE);
+    NetworkInfo info            = manager.getActiveNetworkInfo();
+    boolean wasConnected        = connected;
+
+    connected = info != null && info.isConnected();
+    type      = connected ? info.getType() : -1;
+    roaming   = connected && info.isRoaming();
+
+    if (wasConnected != connected) {
+      Log.i("ConnectivityMonitor", connected ? "Network connected, type "+type : "Network lost");
+    }
+  }
+
+  /**
+   * Add listener for changes
+   *
+   * @param listener Listener
+   */
+  public void addListener(Listener listener)
+  {
+    listeners.add(listener);
+  }
+
+  /**
+   * Remove listener
+   *
+   * @param listener Listener
+   */
+  public void removeListener(Listener listener)
+  {
+    listeners.remove(listener);
+  }
+
+  /**
+   * Check if network is connected and the policy of its class allows
+   * uploads
+   *
+   * @param prefs User preferences
+   * @return Can connect or not
+   */
+  public boolean canConnect(SharedPreferences prefs)
+  {
+    return connected && NetworkPolicy.current(prefs).isAllowed();
+  }
+
+  /**
+   * Is the connected network a Wi-Fi or other unmetered network
+   *
+   * @return Network is Wi-Fi or not
+   */
+  public boolean isWifi()
+  {
+    return type == ConnectivityManager.TYPE_WIFI || type == ConnectivityManager.TYPE_ETHERNET;
+  }
+
+  /**
+   * Is the connected network roaming
+   *
+   * @return Network is roaming or not
+   */
+  public boolean isRoaming()
+  {
+    return roaming;
+  }
+}
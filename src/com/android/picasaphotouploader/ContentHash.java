@@ -0,0 +1,144 @@
+/**
+ * This file is part of Picasa Photo Uploader.
+ *
+ * Picasa Photo Uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Picasa Photo Uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Picasa Photo Uploader. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.android.picasaphotouploader;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * SHA-256 hash of a file that is built while the file is streamed to the
+ * server, so the file doesn't have to be read a second time. Blocks are
+ * passed with their position in the file, blocks that are written again
+ * after a retry are skipped and a gap makes the hash unusable
+ */
+public class ContentHash
+{
+  /**
+   * Hash algorithm
+   */
+  private static final String ALGORITHM = "SHA-256";
+
+  /**
+   * Digest that holds the hash state
+   */
+  private MessageDigest digest;
+
+  /**
+   * Number of bytes from the start of the file that were hashed
+   */
+  private long hashed = 0;
+
+  /**
+   * Set when a block didn't follow the hashed bytes
+   */
+  private boolean broken = false;
+
+  /**
+   * Constructor
+   */
+  public ContentHash()
+  {
+    digest = newDigest();
+  }
+
+  /**
+   * Add block of the file to the hash
+   *
+   * @param position Position of the block in the file
+   * @param buffer Buffer with the block
+   * @param offset Offset of the block in the buffer
+   * @param length Length of the block
+   */
+  public synchronized void update(long position, byte[] buffer, int offset, int length)
+  {
+    // we missed bytes, for instance when upload resumed after a restart
+    if (position > hashed) {
+      broken = true;
+      return;
+    }
+
+    // skip part of the block that was already hashed
+    long skip = hashed - position;
+
+    if (broken || skip >= length) {
+      return;
+    }
+
+    digest.update(buffer, offset + (int)skip, length - (int)skip);
+    hashed += length - skip;
+  }
+
+  /**
+   * Get hash of the file
+   *
+   * @param length Length of the file
+   * @return Hash or null if not all bytes of the file were hashed
+   */
+  public synchronized byte[] getHash(long length)
+  {
+    if (broken || hashed != length) {
+      return null;
+    }
+
+    return digest.digest();
+  }
+
+  /**
+   * Read a complete file and get its hash
+   *
+   * @param file File to hash
+   * @return Hash of the file
+   * @throws IOException
+   */
+  public static byte[] of(File file) throws IOException
+  {
+    MessageDigest digest = newDigest();
+    InputStream is       = new FileInputStream(file);
+
+    try {
+      byte[] tmp = new byte[8192];
+      int l;
+
+      while ((l = is.read(tmp)) != -1) {
+        digest.update(tmp, 0, l);
+      }
+    } finally {
+      is.close();
+    }
+
+    return digest.digest();
+  }
+
+  /**
+   * Create new digest
+   *
+   * @return Digest
+   */
+  private static MessageDigest newDigest()
+  {
+    try {
+      return MessageDigest.getInstance(ALGORITHM);
+    } catch (NoSuchAlgorithmException e) {
+      // every Android version has SHA-256
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -0,0 +1,215 @@
+/**
+ * This file is part of Picasa Photo Uploader.
+ *
+ * Picasa Photo Uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Picasa Photo Uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Picasa Photo Uploader. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.android.picasaphotouploader;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Index of uploaded file contents per album, used to skip photos that
+ * were already uploaded, for instance after a rescan of the media store,
+ * a remount of the sdcard or a copy of the file.
+ *
+ * A file is recognized by path, size and modification time first, so a
+ * known file is never read. Only when a file of the same size was
+ * uploaded to the album before the file is hashed up front, every other
+ * file is hashed while it's being uploaded
+ */
+public class DedupIndex
+{
+  /**
+   * Singleton that refers to this class
+   */
+  private static DedupIndex instance;
+
+  /**
+   * Database helper
+   */
+  private UploadDatabase database;
+
+  /**
+   * Constructor
+   *
+   * @param context Application context
+   */
+  private DedupIndex(Context context)
+  {
+    database = UploadDatabase.getInstance(context);
+  }
+
+  /**
+   * Singleton function
+   *
+   * @param context Application context
+   * @return Instance of this class
+   */
+  public static synchronized DedupIndex getInstance(Context context)
+  {
+    if (instance == null) {
+      instance = new DedupIndex(context);
+    }
+
+    return instance;
+  }
+
+  /**
+   * Check if contents of file were uploaded to album before
+   *
+   * @param file File to check
+   * @param album Picasa album id
+   * @return If file was uploaded before
+   */
+  public boolean isUploaded(File file, String album)
+  {
+    try {
+      byte[] hash = getKnownHash(file);
+
+      // unknown file, only worth hashing if album has a file of the same size
+      if (hash == null) {
+        if (!hasSize(file.length(), album)) {
+          return false;
+        }
+
+        hash = ContentHash.of(file);
+        putFile(file, hash);
+      }
+
+      return hasHash(hash, album);
+    } catch (Exception e) {
+      Log.w("DedupIndex", "Could not check "+file.getName(), e);
+      return false;
+    }
+  }
+
+  /**
+   * Record that file was uploaded to album
+   *
+   * @param file File that was uploaded
+   * @param hash Hash of the file or null if it's not known
+   * @param album Picasa album id
+   */
+  public void putUploaded(File file, byte[] hash, String album)
+  {
+    try {
+      // hash is unknown when upload resumed after a restart
+      if (hash == null) {
+        hash = ContentHash.of(file);
+      }
+
+      SQLiteDatabase db = database.getWritableDatabase();
+      db.beginTransaction();
+
+      try {
+        putFile(file, hash);
+
+        SQLiteStatement insert = db.compileStatement("INSERT OR REPLACE INTO uploaded (hash, album, size, uploaded) VALUES (?, ?, ?, ?)");
+        insert.bindBlob(1, hash);
+        insert.bindString(2, album);
+        insert.bindLong(3, file.length());
+        insert.bindLong(4, System.currentTimeMillis());
+        insert.execute();
+        insert.close();
+
+        db.setTransactionSuccessful();
+      } finally {
+        db.endTransaction();
+      }
+    } catch (IOException e) {
+      Log.w("DedupIndex", "Could not hash "+file.getName(), e);
+    }
+  }
+
+  /**
+   * Get hash of a file that was hashed before and didn't change since
+   *
+   * @param file File to look up
+   * @return Hash or null if file is unknown or changed
+   */
+  private byte[] getKnownHash(File file)
+  {
+    Cursor cursor = database.getReadableDatabase().rawQuery("SELECT hash FROM files WHERE path = ? AND size = ? AND modified = ?", new String[]{ file.getAbsolutePath(), String.valueOf(file.length()), String.valueOf(file.lastModified()) });
+
+    try {
+      return cursor.moveToFirst() ? cursor.getBlob(0) : null;
+    } finally {
+      cursor.close();
+    }
+  }
+
+  /**
+   * Store hash of a file
+   *
+   * @param file File that was hashed
+   * @param hash Hash of the file
+   */
+  private void putFile(File file, byte[] hash)
+  {
+    SQLiteStatement insert = database.getWritableDatabase().compileStatement("INSERT OR REPLACE INTO files (path, size, modified, hash) VALUES (?, ?, ?, ?)");
+    insert.bindString(1, file.getAbsolutePath());
+    insert.bindLong(2, file.length());
+    insert.bindLong(3, file.lastModified());
+    insert.bindBlob(4, hash);
+    insert.execute();
+    insert.close();
+  }
+
+  /**
+   * Check if a file of a size was uploaded to album
+   *
+   * @param size File size
+   * @param album Picasa album id
+   * @return If a file of the same size was uploaded
+   */
+  private boolean hasSize(long size, String album)
+  {
+    SQLiteStatement query = database.getReadableDatabase().compileStatement("SELECT COUNT(*) FROM uploaded WHERE album = ? AND size = ?");
+
+    try {
+      query.bindString(1, album);
+      query.bindLong(2, size);
+      return query.simpleQueryForLong() > 0;
+    } finally {
+      query.close();
+    }
+  }
+
+  /**
+   * Check if contents with a hash were uploaded to album
+   *
+   * @param hash Hash of the contents
+   * @param album Picasa album id
+   * @return If contents were uploaded
+   */
+  private boolean hasHash(byte[] hash, String album)
+  {
+    SQLiteStatement query = database.getReadableDatabase().compileStatement("SELECT COUNT(*) FROM uploaded WHERE hash = ? AND album = ?");
+
+    try {
+      query.bindBlob(1, hash);
+      query.bindString(2, album);
+      return query.simpleQueryForLong() > 0;
+    } finally {
+      query.close();
+    }
+  }
+}
@@ -0,0 +1,181 @@
+/**
+ * This file is part of Picasa Photo Uploader.
+ *
+ * Picasa Photo Uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Picasa Photo Uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Picasa Photo Uploader. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.android.picasaphotouploader;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+/**
+ * Entity for HttpClient that streams a byte range of a file from disk,
+ * used to upload a single chunk of a resumable upload
+ */
+public class FileRangeEntity extends AbstractHttpEntity
+{
+  /**
+   * File to upload
+   */
+  private File file;
+
+  /**
+   * Offset of the first byte to upload
+   */
+  private long offset;
+
+  /**
+   * Number of bytes to upload
+   */
+  private long length;
+
+  /**
+   * Listener for upload progress, may be null
+   */
+  private Multipart.ProgressListener listener;
+
+  /**
+   * Hash that is built while the range is written, may be null
+   */
+  private ContentHash hash;
+
+  /**
+   * Constructor
+   *
+   * @param file File to upload
+   * @param offset Offset of the first byte to upload
+   * @param length Number of bytes to upload
+   * @param contentType Content type of the file
+   * @param listener Listener for upload progress, may be null
+   * @param hash Hash that is built while the range is written, may be null
+   */
+  public FileRangeEntity(File file, long offset, long length, String contentType, Multipart.ProgressListener listener, ContentHash hash)
+  {
+    this.file     = file;
+    this.offset   = offset;
+    this.length   = length;
+    this.listener = listener;
+    this.hash     = hash;
+
+    setContentType(contentType);
+  }
+
+  /**
+   * File is read again on each write so entity can be repeated
+   *
+   * @return Entity is repeatable
+   */
+  @Override
+  public boolean isRepeatable()
+  {
+    return true;
+  }
+
+  /**
+   * Get length of the range
+   *
+   * @return Range length
+   */
+  @Override
+  public long getContentLength()
+  {
+    return length;
+  }
+
+  /**
+   * Content is only available by writing it
+   *
+   * @throws UnsupportedOperationException
+   */
+  @Override
+  public InputStream getContent() throws IOException
+  {
+    throw new UnsupportedOperationException("File range entity does not implement getContent()");
+  }
+
+  /**
+   * Entity is not a stream
+   *
+   * @return False
+   */
+  @Override
+  public boolean isStreaming()
+  {
+    return false;
+  }
+
+  /**
+   * Write range of the file to outputstream of HttpClient
+   *
+   * @param outstream Outputstream of the HttpClient
+   * @throws IOException
+   */
+  @Override
+  public void writeTo(OutputStream outstream) throws IOException
+  {
+    if (outstream == null) {
+      throw new IllegalArgumentException("Output stream may not be null");
+    }
+
+    InputStream is   = new FileInputStream(file);
+    OutputStream out = new ThrottledOutputStream(outstream);
+
+    try {
+      // skip to start of range
+      long skip = offset;
+
+      while (skip > 0) {
+        long skipped = is.skip(skip);
+
+        if (skipped <= 0) {
+          throw new IOException("Could not seek in file "+file.getName());
+        }
+
+        skip -= skipped;
+      }
+
+      byte[] tmp     = new byte[8192];
+      long remaining = length;
+      int l;
+
+      // read range and write to http output stream
+      while (remaining > 0 && (l = is.read(tmp, 0, (int)Math.min(tmp.length, remaining))) != -1) {
+        out.write(tmp, 0, l);
+
+        if (hash != null) {
+          hash.update(offset + length - remaining, tmp, 0, l);
+        }
+
+        remaining -= l;
+
+        if (listener != null) {
+          listener.transferred(offset + length - remaining, file.length());
+        }
+      }
+
+      if (remaining > 0) {
+        throw new IOException("Could not completely read file "+file.getName());
+      }
+
+      outstream.flush();
+    } finally {
+      is.close();
+    }
+  }
+}
@@ -0,0 +1,271 @@
+/**
+ * This file is part of Picasa Photo Uploader.
+ *
+ * Picasa Photo Uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Picasa Photo Uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Picasa Photo Uploader. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.android.picasaphotouploader;
+
+import android.os.FileObserver;
+import android.util.Log;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when a new image file is completely written. The directory of
+ * the file is watched for a CLOSE_WRITE event, as a fallback the size and
+ * modification time are checked with growing intervals until they stop
+ * changing. Files that don't become stable in time are dropped
+ */
+public class FileStabilityDetector
+{
+  /**
+   * Callback for the result of a watch
+   */
+  public interface Callback
+  {
+    /**
+     * File is completely written
+     *
+     * @param file Watched file
+     */
+    public void stable(File file);
+
+    /**
+     * File didn't become stable in time or disappeared
+     *
+     * @param file Watched file
+     */
+    public void abandoned(File file);
+  }
+
+  /**
+   * First interval between checks
+   */
+  private static final long FIRST_INTERVAL = 250;
+
+  /**
+   * Longest interval between checks
+   */
+  private static final long MAX_INTERVAL = 2000;
+
+  /**
+   * File that wasn't modified for this long is considered complete
+   */
+  private static final long QUIET_MILLIS = 1000;
+
+  /**
+   * Maximum time to wait for a file
+   */
+  private static final long TIMEOUT = 30000;
+
+  /**
+   * Thread that runs the checks, waits between checks don't hold a thread
+   */
+  private ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+
+  /**
+   * Watches that have no result yet
+   */
+  private Set<Watch> watches = new HashSet<Watch>();
+
+  /**
+   * Watch file until it's completely written, callback is run on the
+   * thread of the detector
+   *
+   * @param file File to watch
+   * @param callback Callback for the result
+   */
+  public void watch(File file, Callback callback)
+  {
+    new Watch(file, callback).start();
+  }
+
+  /**
+   * Stop timer thread and all directory observers, watches that have no
+   * result yet are dropped without a callback
+   */
+  public void quit()
+  {
+    timer.shutdownNow();
+
+    synchronized (watches) {
+      for (Watch watch : watches) {
+        watch.stop();
+      }
+
+      watches.clear();
+    }
+  }
+
+  /**
+   * Watch of a single file
+   */
+  private class Watch implements Runnable
+  {
+    /**
+     * Watched file
+     */
+    private File file;
+
+    /**
+     * Callback for the result
+     */
+    private Callback callback;
+
+    /**
+     * Observer of the directory of the file
+     */
+    private FileObserver observer;
+
+    /**
+     * Set when file was closed after writing
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * Set when result was delivered
+     */
+    private boolean done = false;
+
+    /**
+     * Size at last check
+     */
+    private long lastSize = -1;
+
+    /**
+     * Modification time at last check
+     */
+    private long lastModified = -1;
+
+    /**
+     * Interval until next check
+     */
+    private long interval = FIRST_INTERVAL;
+
+    /**
+     * Time at which file is dropped
+     */
+    private long deadline;
+
+    /**
+     * Constructor
+     *
+     * @param file File to watch
+     * @param callback Callback for the result
+     */
+    public Watch(File file, Callback callback)
+    {
+      this.file     = file;
+      this.callback = callback;
+    }
+
+    /**
+     * Start watching directory and check file right away
+     */
+    public void start()
+    {
+      deadline = System.currentTimeMillis() + TIMEOUT;
+
+      synchronized (watches) {
+        watches.add(this);
+      }
+
+      if (file.getParentFile() != null) {
+        observer = new FileObserver(file.getParent(), FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO) {
+          @Override
+          public void onEvent(int event, String path)
+          {
+            if (file.getName().equals(path) && !timer.isShutdown()) {
+              closed = true;
+              timer.execute(Watch.this);
+            }
+          }
+        };
+        observer.startWatching();
+      }
+
+      timer.execute(this);
+    }
+
+    /**
+     * Check if file is complete
+     */
+    @Override
+    public synchronized void run()
+    {
+      if (done) {
+        return;
+      }
+
+      long now      = System.currentTimeMillis();
+      long size     = file.length();
+      long modified = file.lastModified();
+
+      // file was closed, or didn't change since last check and wasn't
+      // touched for a while
+      if (size > 0 && (closed || size == lastSize && modified == lastModified && now - modified >= QUIET_MILLIS || lastSize == -1 && now - modified >= QUIET_MILLIS)) {
+        finish(true);
+        return;
+      }
+
+      if (now >= deadline) {
+        Log.w("FileStabilityDetector", "Dropping "+file.getName()+", not completely written after "+TIMEOUT+" ms");
+        finish(false);
+        return;
+      }
+
+      // check again later, back off while file keeps changing
+      lastSize     = size;
+      lastModified = modified;
+      timer.schedule(this, interval, TimeUnit.MILLISECONDS);
+      interval     = Math.min(interval * 2, MAX_INTERVAL);
+    }
+
+    /**
+     * Stop watching directory of the file
+     */
+    public void stop()
+    {
+      if (observer != null) {
+        observer.stopWatching();
+      }
+    }
+
+    /**
+     * Stop watching and deliver result
+     *
+     * @param stable If file is completely written
+     */
+    private void finish(boolean stable)
+    {
+      done = true;
+      stop();
+
+      synchronized (watches) {
+        watches.remove(this);
+      }
+
+      if (stable) {
+        callback.stable(file);
+      } else {
+        callback.abandoned(file);
+      }
+    }
+  }
+}
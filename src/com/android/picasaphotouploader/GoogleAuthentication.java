@@ -23,15 +23,8 @@ import android.widget.Toast;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.net.URL;
-import java.security.SecureRandom;
-import java.security.cert.X509Certificate;
 
-import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.HttpsURLConnection;
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLSession;
-import javax.net.ssl.TrustManager;
-import javax.net.ssl.X509TrustManager;
 
 /**
  * Try to authenticate at google with user email and password to
@@ -95,16 +88,9 @@ public class GoogleAuthentication
       // url to authenticate on
       String authUrl  = "https://www.google.com/accounts/ClientLogin?accountType=GOOGLE&Email="+email+"&Passwd="+password+"&service=lh2&source=PicasaUploader";
 
-      // create ssl context
-      SSLContext sc = SSLContext.getInstance("TLS");
-
-      // override ssl context with our own class, otherwise ssl will fail
-      sc.init(null, new TrustManager[]{new MyTrustManager()}, new SecureRandom());
-
-      // create url connection
-      HttpsURLConnection.setDefaultSSLSocketFactory(sc.getSocketFactory());
-      HttpsURLConnection.setDefaultHostnameVerifier(new MyHostnameVerifier());
+      // create url connection that uses shared tls context
       HttpsURLConnection con = (HttpsURLConnection) new URL(authUrl).openConnection();
+      TlsContext.getInstance().apply(con);
 
       // set timeout and that we do  output
       con.setReadTimeout(15000);
@@ -134,38 +120,4 @@ public class GoogleAuthentication
      // return auth for further use in the application
     return auth;
   }
-
-  /**
-   * Override class so SSL will work
-   */
-  private class MyHostnameVerifier implements HostnameVerifier
-  {
-    @Override
-    public boolean verify(String hostname, SSLSession session)
-    {
-      return true;
-    }
-  }
-
-  /**
-   * Override class so SSL will work
-   */
-  private class MyTrustManager implements X509TrustManager
-  {
-    @Override
-    public void checkClientTrusted(X509Certificate[] chain, String authType)
-    {
-    }
-
-    @Override
-    public void checkServerTrusted(X509Certificate[] chain, String authType)
-    {
-    }
-
-    @Override
-    public X509Certificate[] getAcceptedIssuers()
-    {
-      return null;
-    }
-  }
 }
@@ -59,4 +59,20 @@ public class ImageItem
    * Image size
    */
   public int imageSize;
+
+  /**
+   * Location of the file that is uploaded, a downscaled copy of the image
+   * or null if the image itself is uploaded
+   */
+  public String uploadPath;
+
+  /**
+   * Hash of the image contents if known before upload
+   */
+  public byte[] imageHash;
+
+  /**
+   * Number of failed upload attempts
+   */
+  public int attempts = 0;
 }
@@ -0,0 +1,136 @@
+/**
+ * This file is part of Picasa Photo Uploader.
+ *
+ * Picasa Photo Uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Picasa Photo Uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Picasa Photo Uploader. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.android.picasaphotouploader;
+
+import com.PicasaPhotoUpload.PicasaPhotoUploadActivity;
+
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.preference.PreferenceManager;
+import android.provider.MediaStore.Images.Media;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Class to find images that were added to database since the last scan.
+ * Only rows above the highest id seen are read, so a scan costs the number
+ * of new rows and a burst of inserts is handled in one scan
+ */
+public class ImageScanner
+{
+  /**
+   * Number of rows read per query
+   */
+  private static final int PAGE_SIZE = 50;
+
+  /**
+   * Columns read for each image
+   */
+  private static final String[] COLUMNS = new String[]{ Media._ID, Media.DATA, Media.DISPLAY_NAME, Media.MIME_TYPE, Media.SIZE };
+
+  /**
+   * Only images that have a file on the sdcard
+   */
+  private static final String SELECTION = Media._ID+" > ? AND "+Media.MIME_TYPE+" LIKE 'image/%' AND "+Media.DATA+" NOT NULL";
+
+  /**
+   * Main application
+   */
+  private PicasaPhotoUploadActivity application;
+
+  /**
+   * Persisted scan position
+   */
+  private ScanCheckpoint checkpoint;
+
+  /**
+   * Constructor
+   *
+   * @param application Main application
+   * @param checkpoint Persisted scan position
+   */
+  public ImageScanner(PicasaPhotoUploadActivity application, ScanCheckpoint checkpoint)
+  {
+    this.application = application;
+    this.checkpoint  = checkpoint;
+  }
+
+  /**
+   * Get all images added since the last scan in id order. The highest id
+   * seen is stored in the application after each page, the checkpoint
+   * tracks the images until the caller reports them done
+   *
+   * @return New image items, empty if there are none
+   */
+  public List<ImageItem> scan()
+  {
+    List<ImageItem> items   = new ArrayList<ImageItem>();
+    SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(application.getBaseContext());
+    int lastSeen            = application.getMaxId();
+
+    while (true) {
+      Cursor cursor = application.getContentResolver().query(Media.EXTERNAL_CONTENT_URI, COLUMNS, SELECTION,
+        new String[]{ Integer.toString(lastSeen) }, Media._ID+" ASC LIMIT "+PAGE_SIZE);
+
+      if (cursor == null) {
+        break;
+      }
+
+      int rows = 0;
+
+      try {
+        int idColumn   = cursor.getColumnIndex(Media._ID);
+        int pathColumn = cursor.getColumnIndex(Media.DATA);
+        int nameColumn = cursor.getColumnIndex(Media.DISPLAY_NAME);
+        int typeColumn = cursor.getColumnIndex(Media.MIME_TYPE);
+        int sizeColumn = cursor.getColumnIndex(Media.SIZE);
+
+        while (cursor.moveToNext()) {
+          ImageItem item = new ImageItem();
+          item.prefs     = prefs;
+          item.imageId   = cursor.getInt(idColumn);
+          item.imagePath = cursor.getString(pathColumn);
+          item.imageName = cursor.getString(nameColumn);
+          item.imageType = cursor.getString(typeColumn);
+          item.imageSize = cursor.getInt(sizeColumn);
+
+          items.add(item);
+          checkpoint.pending(item.imageId);
+
+          lastSeen = item.imageId;
+          rows++;
+        }
+      } finally {
+        cursor.close();
+      }
+
+      application.setMaxId(lastSeen);
+
+      if (rows > 0) {
+        checkpoint.scanned(lastSeen);
+      }
+
+      // last page was not full so there are no more rows
+      if (rows < PAGE_SIZE) {
+        break;
+      }
+    }
+
+    return items;
+  }
+}
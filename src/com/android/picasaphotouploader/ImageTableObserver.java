@@ -19,15 +19,20 @@ package com.android.picasaphotouploader;
 import android.content.SharedPreferences;
 import android.database.ContentObserver;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.util.Log;
 
+import java.io.File;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import com.PicasaPhotoUpload.PicasaPhotoUploadActivity;
 
 /**
- * Class to observe changes to images table
+ * Class to observe changes to images table. Changes are coalesced and
+ * handled on a background thread so the handler thread is never blocked by
+ * database queries or network requests
  * 
  * @author Jan Peter Hooiveld
  */
@@ -39,199 +44,190 @@ public class ImageTableObserver extends ContentObserver
 	private PicasaPhotoUploadActivity application;
 
 	/**
-	 *  Queue that handles image uploads
+	 *  Engine that handles image uploads
 	 */
-	private ExecutorService queue;
+	private UploadEngine engine;
 
-	private Boolean isDone = false;
-	private Boolean isCheckAlbumDone = false;
-	private String auth;
-	private Boolean isAlbumExist = false;
-
-	public String getAuth() {
-		return auth;
-	}
-
-	public void setAuth(String auth) {
-		this.auth = auth;
-	}
-
-	public Boolean getIsAlbumExist() {
-		return isAlbumExist;
-	}
-
-	public void setIsAlbumExist(Boolean isAlbumExist) {
-		this.isAlbumExist = isAlbumExist;
-	}
+	/**
+	 * Time without changes before the image table is scanned
+	 */
+	private static final long QUIET_MILLIS = 500;
 
-	public Boolean getIsCheckAlbumDone() {
-		return isCheckAlbumDone;
-	}
+	/**
+	 * Maximum time a change waits for a scan during a storm of changes
+	 */
+	private static final long MAX_DELAY_MILLIS = 3000;
 
-	public void setIsCheckAlbumDone(Boolean isCheckAlbumDone) {
-		this.isCheckAlbumDone = isCheckAlbumDone;
-	}
+	/**
+	 * Background thread that hands images to the upload engine so the
+	 * journal write is not done on the scan thread
+	 */
+	private ExecutorService pipeline = Executors.newSingleThreadExecutor();
 
-	public Boolean getIsDone() {
-		return isDone;
-	}
+	/**
+	 * Folds storms of changes into one scan on a background thread
+	 */
+	private ChangeCoalescer coalescer;
 
-	public void setIsDone(Boolean isDone) {
-		this.isDone = isDone;
-	}
+	/**
+	 * Persisted scan position, only passes images once they are queued
+	 */
+	private ScanCheckpoint checkpoint;
 
-	public final ImageTableObserver getOuterClass(){
-		return this;
-	}
+	/**
+	 * Detector that waits until new images are completely written
+	 */
+	private FileStabilityDetector detector = new FileStabilityDetector();
 
 	/**
 	 * Constructor
 	 * 
 	 * @param handler Handler for this class
 	 * @param picasaPhotoUploadActivity Main application
-	 * @param queue Queue that handles image uploads
+	 * @param engine Engine that handles image uploads
 	 */
-	public ImageTableObserver(Handler handler, PicasaPhotoUploadActivity picasaPhotoUploadActivity, ExecutorService queue)
+	public ImageTableObserver(Handler handler, PicasaPhotoUploadActivity picasaPhotoUploadActivity, UploadEngine engine)
 	{
 		super(handler);
 
 		this.application = picasaPhotoUploadActivity;
-		this.queue       = queue;
+		this.engine      = engine;
+		this.checkpoint  = new ScanCheckpoint(picasaPhotoUploadActivity.getBaseContext());
+		this.coalescer   = new ChangeCoalescer("ImageTableScanner", QUIET_MILLIS, MAX_DELAY_MILLIS, new ChangeCoalescer.Listener() {
+			@Override
+			public void flush(long firstChange, int events)
+			{
+				try {
+					process(firstChange);
+				} catch (Exception e) {
+					Log.e("ImageTableObserver", "Could not process change", e);
+				}
+
+				Log.d("ImageTableObserver", "Scanned after "+events+" changes, "+coalescer.getCoalesced()+" coalesced in total");
+			}
+		});
 	}
 
 	/**
-	 * This function is fired when a change occurs on the image table
+	 * Stop background threads, call after observer was unregistered. Images
+	 * that are waiting for the detector are scanned again on next start
+	 * because the checkpoint didn't pass them yet
+	 */
+	public void quit()
+	{
+		coalescer.quit();
+		detector.quit();
+		pipeline.shutdown();
+	}
+
+	/**
+	 * This function is fired when a change occurs on the image table, the
+	 * change is coalesced with others and handled in the background
 	 *
 	 * @param selfChange
 	 */
 	@Override
 	public void onChange(boolean selfChange)
 	{
-		// get latest image id
-		ImageLatest latestImage = new ImageLatest(application);
-		int imageId             = latestImage.getId();
+		coalescer.signal();
+	}
 
-		// if id is -1 it means no record was found or it was a update/delete instead of insert
-		if (imageId == -1) {
-			return;
+	/**
+	 * Find new images and wait until they are completely written
+	 *
+	 * @param changed Time of the change in milliseconds since boot
+	 */
+	private void process(final long changed)
+	{
+		// get all images added since last change
+		for (ImageItem item : new ImageScanner(application, checkpoint).scan()) {
+			if (item.imagePath != null) {
+				watch(item, changed);
+			} else {
+				checkpoint.done(item.imageId);
+			}
 		}
+	}
 
-		// get image item
-		ImageItem item  = latestImage.getLatestItem();
+	/**
+	 * Wait until file of image is completely written, then continue in the
+	 * pipeline
+	 *
+	 * @param item Image item
+	 * @param changed Time of the change in milliseconds since boot
+	 */
+	private void watch(final ImageItem item, final long changed)
+	{
+		detector.watch(new File(item.imagePath), new FileStabilityDetector.Callback() {
+			@Override
+			public void stable(final File file)
+			{
+				pipeline.execute(new Runnable() {
+					@Override
+					public void run()
+					{
+						try {
+							item.imageSize = (int) file.length();
+							queue(item, changed);
+						} catch (Exception e) {
+							Log.e("ImageTableObserver", "Could not queue "+item.imageName, e);
+						}
+					}
+				});
+			}
 
-		// if no image item returned abort
-		if (item == null) {
-			return;
-		}
+			@Override
+			public void abandoned(File file)
+			{
+				Log.w("ImageTableObserver", "Skipped "+item.imageName+", file is not complete");
+				checkpoint.done(item.imageId);
+			}
+		});
+	}
 
+	/**
+	 * Queue image for upload. The image is always queued once an album is
+	 * set, authentication and missing albums are handled by the uploader so
+	 * an image is never lost after the scan checkpoint moved past it
+	 *
+	 * @param item Image item
+	 * @param changed Time of the change in milliseconds since boot
+	 */
+	private void queue(final ImageItem item, long changed)
+	{
 		// get user preferences
-		final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(application.getBaseContext());
-
-		// check if we can connect to internet
-		if (!CheckInternet.getInstance().canConnect(application.getBaseContext(), prefs)) {
-			return;
-		}
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(application.getBaseContext());
 
 		// check if album is set in preferences
 		if (prefs.getString("album", "").trim().length() == 0) {
+			checkpoint.done(item.imageId);
 			return;
 		}
-		Thread workerAuth = new Thread(new Runnable(){
+
+		// collect id of notification
+		application.runOnUiThread(new Runnable() {
 			@Override
 			public void run()
 			{
-				Log.d("ImageTableObserver - retrieveAUTH", "Thread run() : started");
-				String auth = getAuthentication(prefs);
-				getOuterClass().setAuth(auth);
-				Log.e("info ImageTableObserver ", "auth value : " + auth);
-				getOuterClass().setIsDone(true);
-				Log.d("ImageTableObserver - retrieveAUTH", "Thread run() : finished");
+				application.addId(item.imageId);
 			}
-
 		});
-		workerAuth.start();
-		
-
-		while (this.getIsDone() == false){
-			try {
-				Thread.sleep(2000);
-				if (this.getIsDone() == true) {
-					
-					// check if auth is null
-					if (this.getAuth() == null) {
-						return;
-					}
-					
-					Thread workerCheckAlbum = new Thread(new Runnable(){
-						@Override
-						public void run()
-						{
-							Log.d("ImageTableObserver - workerCheckAlbum", "Thread run() : started");
-							Boolean isExist = albumExists(getOuterClass().getAuth(), prefs);
-							getOuterClass().setIsAlbumExist(isExist);
-							getOuterClass().setIsCheckAlbumDone(true);
-							Log.d("ImageTableObserver - workerCheckAlbum", "Thread run() : finished");
-						}
 
-					});
-					workerCheckAlbum.start();
-
-					while (this.getIsCheckAlbumDone() == false){
-						Thread.sleep(2000);
-						if (this.getIsCheckAlbumDone() == true) {
-							// check if albums from preferences does not exist
-							if (!this.getIsAlbumExist()) {
-								Log.w("ImageTableObserver - workerCheckAlbum", "album not exist...");
-								this.setIsCheckAlbumDone(false);
-								return;
-							}
-
-							// add auth to image item and then add it to queue
-							item.imageAuth = this.getAuth();
-
-							// collect id of notification
-							application.addId(item.imageId);
-							
-							// add item to queue
-							queue.execute(new ImageUploader(application.getBaseContext(), queue, item, 0));
-							this.setIsCheckAlbumDone(false);
-							break;
-						}
-						Log.d("ImageTableObserver - workerCheckAlbum", "looping...");
-					}
-					this.setIsDone(false);
-					break;
-				}
-				Log.d("ImageTableObserver - retrieveAUTH", "looping...");
-			} catch (InterruptedException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+		// add item to upload engine, checkpoint passes image once its record
+		// in the journal is committed
+		boolean queued = engine.submit(item, new Runnable() {
+			@Override
+			public void run()
+			{
+				checkpoint.done(item.imageId);
 			}
-		}
-
-		// check if authentication succeeded
-	}
+		});
 
-	/**
-	 * Get authentication string from Google
-	 *
-	 * @param prefs User preferences
-	 * @return Google authentication string
-	 */
-	private String getAuthentication(SharedPreferences prefs)
-	{
-		return new GoogleAuthentication(prefs, application.getBaseContext()).getAuthenticationString();
-	}
+		if (!queued) {
+			Log.w("ImageTableObserver", "Upload engine stopped, "+item.imageName+" is scanned again on next start");
+			return;
+		}
 
-	/**
-	 * Check if Picasa album stored in user preferences exists
-	 *
-	 * @param auth Google authentication string
-	 * @param prefs User preferences
-	 * @return If album exists or not
-	 */
-	private boolean albumExists(String auth, SharedPreferences prefs)
-	{
-		return new AlbumExists(auth, prefs.getString("email", ""), prefs.getString("album", "")).hasAlbum();
+		Log.i("ImageTableObserver", "Queued "+item.imageName+" "+(SystemClock.elapsedRealtime() - changed)+" ms after change");
 	}
 }
@@ -0,0 +1,332 @@
+/**
+ * This file is part of Picasa Photo Uploader.
+ *
+ * Picasa Photo Uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Picasa Photo Uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Picasa Photo Uploader. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.android.picasaphotouploader;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.ExifInterface;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Downscales photos before upload to the size and quality set in the user
+ * preferences. The photo is decoded with a sample size so the full size
+ * bitmap is never loaded, the result is written to a spool file in the
+ * cache directory which is uploaded instead of the photo
+ */
+public class ImageTransformer
+{
+  /**
+   * Value of resize preference to upload original photos
+   */
+  private static final String RESIZE_ORIGINAL = "original";
+
+  /**
+   * Exif tags copied from the photo to the downscaled copy
+   */
+  private static final String[] EXIF_TAGS = new String[]{
+    ExifInterface.TAG_ORIENTATION,
+    ExifInterface.TAG_DATETIME,
+    ExifInterface.TAG_MAKE,
+    ExifInterface.TAG_MODEL,
+    ExifInterface.TAG_FLASH,
+    ExifInterface.TAG_FOCAL_LENGTH,
+    ExifInterface.TAG_WHITE_BALANCE,
+    ExifInterface.TAG_GPS_LATITUDE,
+    ExifInterface.TAG_GPS_LATITUDE_REF,
+    ExifInterface.TAG_GPS_LONGITUDE,
+    ExifInterface.TAG_GPS_LONGITUDE_REF,
+    ExifInterface.TAG_GPS_ALTITUDE,
+    ExifInterface.TAG_GPS_ALTITUDE_REF,
+    ExifInterface.TAG_GPS_TIMESTAMP,
+    ExifInterface.TAG_GPS_DATESTAMP
+  };
+
+  /**
+   * Application context
+   */
+  private Context context;
+
+  /**
+   * Constructor
+   *
+   * @param context Application context
+   */
+  public ImageTransformer(Context context)
+  {
+    this.context = context;
+  }
+
+  /**
+   * Downscale photo if user enabled it and photo is larger than the maximum
+   * size. Sets upload path and hash of the photo in the image item
+   *
+   * @param item Image queue item
+   * @return If photo was downscaled
+   */
+  public boolean transform(ImageItem item)
+  {
+    NetworkPolicy policy = NetworkPolicy.current(item.prefs);
+    String resize        = policy.getResize();
+
+    // only jpeg photos are downscaled, other formats would lose too much
+    if (resize.equals(RESIZE_ORIGINAL) || !"image/jpeg".equals(item.imageType)) {
+      return false;
+    }
+
+    File source = new File(item.imagePath);
+    File spool  = getSpoolFile(item);
+
+    try {
+      int maxSize = Integer.valueOf(resize);
+      int quality = policy.getQuality();
+
+      // spool file of an earlier attempt, also before a restart, upload the
+      // same bytes again so a resumable session can continue. Without a
+      // hash the photo is hashed when the upload is recorded
+      if (spool.exists() && spool.lastModified() >= source.lastModified()) {
+        item.uploadPath = spool.getAbsolutePath();
+        return true;
+      }
+
+      // read size of photo without decoding it
+      BitmapFactory.Options options = new BitmapFactory.Options();
+      options.inJustDecodeBounds    = true;
+      BitmapFactory.decodeFile(source.getAbsolutePath(), options);
+
+      int largest = Math.max(options.outWidth, options.outHeight);
+
+      if (largest <= 0 || largest <= maxSize) {
+        return false;
+      }
+
+      // largest power of two that keeps the photo at least as large as
+      // maximum size, the decoder skips the other pixels. Jpeg has no alpha
+      // so 16 bits per pixel are enough and halve the memory needed
+      options.inJustDecodeBounds = false;
+      options.inPreferredConfig  = Bitmap.Config.RGB_565;
+      options.inSampleSize       = 1;
+
+      while (largest / (options.inSampleSize * 2) >= maxSize) {
+        options.inSampleSize *= 2;
+      }
+
+      // decode photo and hash the original bytes in the same pass
+      ContentHash hash      = new ContentHash();
+      HashingInputStream is = new HashingInputStream(new FileInputStream(source), hash);
+      Bitmap bitmap;
+
+      try {
+        bitmap = BitmapFactory.decodeStream(new BufferedInputStream(is, 16384), null, options);
+        is.drain();
+      } finally {
+        is.close();
+      }
+
+      if (bitmap == null) {
+        return false;
+      }
+
+      // scale sampled bitmap to exact maximum size, sampled bitmap is
+      // recycled as soon as the scaled copy exists
+      float scale = (float)maxSize / Math.max(bitmap.getWidth(), bitmap.getHeight());
+
+      if (scale < 1) {
+        Bitmap scaled;
+
+        try {
+          scaled = Bitmap.createScaledBitmap(bitmap, Math.round(bitmap.getWidth() * scale), Math.round(bitmap.getHeight() * scale), true);
+        } catch (OutOfMemoryError e) {
+          // no room for a second bitmap, upload sampled bitmap as it is
+          Log.w("ImageTransformer", "No memory to scale "+item.imageName+", using sampled size");
+          scaled = bitmap;
+        }
+
+        if (scaled != bitmap) {
+          bitmap.recycle();
+          bitmap = scaled;
+        }
+      }
+
+      // write to temporary file and rename so spool file is always complete
+      File tmp         = new File(spool.getAbsolutePath()+".tmp");
+      OutputStream out = new FileOutputStream(tmp);
+
+      try {
+        bitmap.compress(Bitmap.CompressFormat.JPEG, quality, out);
+      } finally {
+        out.close();
+        bitmap.recycle();
+      }
+
+      copyExif(source, tmp);
+
+      if (!tmp.renameTo(spool)) {
+        tmp.delete();
+        return false;
+      }
+
+      item.uploadPath = spool.getAbsolutePath();
+      item.imageHash  = hash.getHash(source.length());
+
+      Log.i("ImageTransformer", "Downscaled "+item.imageName+" from "+(source.length() / 1024)+" KB to "+(spool.length() / 1024)+" KB, saved "+((source.length() - spool.length()) / 1024)+" KB");
+
+      return true;
+    } catch (Throwable e) {
+      // upload original photo if anything goes wrong, out of memory included
+      Log.w("ImageTransformer", "Could not downscale "+item.imageName, e);
+      spool.delete();
+      item.uploadPath = null;
+      return false;
+    }
+  }
+
+  /**
+   * Remove spool file of an image
+   *
+   * @param item Image queue item
+   */
+  public void cleanup(ImageItem item)
+  {
+    if (item.uploadPath != null) {
+      new File(item.uploadPath).delete();
+      item.uploadPath = null;
+    }
+  }
+
+  /**
+   * Get spool file of an image
+   *
+   * @param item Image queue item
+   * @return Spool file
+   */
+  private File getSpoolFile(ImageItem item)
+  {
+    return new File(context.getCacheDir(), "upload_"+item.imageId+".jpg");
+  }
+
+  /**
+   * Copy exif information from photo to downscaled copy
+   *
+   * @param source Original photo
+   * @param target Downscaled copy
+   */
+  private void copyExif(File source, File target)
+  {
+    try {
+      ExifInterface from = new ExifInterface(source.getAbsolutePath());
+      ExifInterface to   = new ExifInterface(target.getAbsolutePath());
+
+      for (String tag : EXIF_TAGS) {
+        String value = from.getAttribute(tag);
+
+        if (value != null) {
+          to.setAttribute(tag, value);
+        }
+      }
+
+      to.saveAttributes();
+    } catch (IOException e) {
+      Log.w("ImageTransformer", "Could not copy exif information", e);
+    }
+  }
+
+  /**
+   * Input stream that adds every byte it reads to a content hash
+   */
+  private static class HashingInputStream extends FilterInputStream
+  {
+    /**
+     * Hash of the bytes read
+     */
+    private ContentHash hash;
+
+    /**
+     * Number of bytes read
+     */
+    private long position = 0;
+
+    /**
+     * Constructor
+     *
+     * @param in Stream to read from
+     * @param hash Hash of the bytes read
+     */
+    public HashingInputStream(InputStream in, ContentHash hash)
+    {
+      super(in);
+      this.hash = hash;
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException
+    {
+      int l = in.read(buffer, offset, length);
+
+      if (l > 0) {
+        hash.update(position, buffer, offset, l);
+        position += l;
+      }
+
+      return l;
+    }
+
+    @Override
+    public long skip(long n) throws IOException
+    {
+      // skipped bytes have to be hashed as well
+      byte[] tmp = new byte[(int)Math.min(n, 8192)];
+      int l      = read(tmp, 0, tmp.length);
+      return Math.max(l, 0);
+    }
+
+    @Override
+    public boolean markSupported()
+    {
+      return false;
+    }
+
+    /**
+     * Read rest of the stream, decoder may stop before end of file
+     *
+     * @throws IOException
+     */
+    public void drain() throws IOException
+    {
+      byte[] tmp = new byte[8192];
+
+      while (read(tmp, 0, tmp.length) != -1) {
+      }
+    }
+  }
+}
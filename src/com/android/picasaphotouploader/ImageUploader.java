@@ -17,28 +17,22 @@
 package com.android.picasaphotouploader;
 
 import android.content.Context;
-import android.content.SharedPreferences;
-import android.preference.PreferenceManager;
+import android.util.Log;
 
 import java.io.File;
-import java.util.concurrent.ExecutorService;
+import java.io.IOException;
 
 import org.apache.http.HttpResponse;
-import org.apache.http.HttpVersion;
 import org.apache.http.StatusLine;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.params.CoreConnectionPNames;
-import org.apache.http.params.CoreProtocolPNames;
-import org.apache.http.params.HttpParams;
 
 /**
- * Class to upload image to Picasa
+ * Class to upload image to Picasa, uploads are scheduled by the upload engine
  *
  * @author Jan Peter Hooiveld
  */
-public class ImageUploader implements Runnable
+public class ImageUploader
 {
   /**
    * Application context
@@ -46,108 +40,271 @@ public class ImageUploader implements Runnable
   private Context context;
 
   /**
-   *  Queue that handles image uploads
+   * Image queue item
    */
-  private ExecutorService queue;
+  private ImageItem item;
 
   /**
-   * Image queue item
+   * Upload notification
    */
-  private ImageItem item;
+  private UploadNotification notification;
 
   /**
-   * Number of retries for failed uploads
+   * Post request of a single request upload
    */
-  private int retries;
+  private volatile HttpPost post;
+
+  /**
+   * Uploader of a resumable upload
+   */
+  private volatile ResumableUploader resumable;
+
+  /**
+   * Value of upload mode preference for resumable uploads
+   */
+  private static final String MODE_RESUMABLE = "resumable";
 
   /**
    * Constructor
    *
    * @param context Application context
-   * @param queue Queue that handles image uploads
    * @param item Image queue item
-   * @param retries Number of retries for failed uploads
    */
-  public ImageUploader(Context context, ExecutorService queue, ImageItem item, int retries)
+  public ImageUploader(Context context, ImageItem item)
+  {
+    this.context = context;
+    this.item    = item;
+  }
+
+  /**
+   * Get image that is uploaded
+   *
+   * @return Image queue item
+   */
+  public ImageItem getItem()
   {
-    this.context  = context;
-    this.queue    = queue;
-    this.item     = item;
-    this.retries  = retries;
+    return item;
   }
 
   /**
    * Upload image to Picasa
+   *
+   * @return True if image was sent, false if it was skipped
+   * @throws Exception
    */
-  public void run()
+  public boolean upload() throws Exception
   {
+    File file    = new File(item.imagePath);
+    String album = item.prefs.getString("album", "");
+
+    // skip photo if same contents were uploaded to album before
+    if (DedupIndex.getInstance(context).isUploaded(file, album)) {
+      Log.i("ImageUploader", "Skipping "+item.imageName+", already uploaded to album");
+      return false;
+    }
+
+    // downscale photo if user enabled it and upload the copy instead
+    new ImageTransformer(context).transform(item);
+
     // create items for http client
-    UploadNotification notification = new UploadNotification(context, item.imageId, item.imageSize, item.imageName);
-    String url                      = "http://picasaweb.google.com/data/feed/api/user/"+item.prefs.getString("email", "")+"/albumid/"+item.prefs.getString("album", "");
-    HttpClient client               = new DefaultHttpClient();
-    HttpPost post                   = new HttpPost(url);
+    File upload       = item.uploadPath != null ? new File(item.uploadPath) : file;
+    notification      = new UploadNotification(context, item.imageId, (int)upload.length(), item.imageName);
+    HttpClient client = SharedHttpClient.getInstance().getClient();
+    ContentHash hash;
 
     try {
-      // new file and and entity
-      File file            = new File(item.imagePath);
-      Multipart multipart  = new Multipart("Media multipart posting", "END_OF_PART");
+      // images get their authentication when the upload runs
+      if (item.imageAuth == null) {
+        item.imageAuth = authenticate();
+      }
 
-      // create entity parts
-      multipart.addPart("<entry xmlns='http://www.w3.org/2005/Atom'><title>"+item.imageName+"</title><category scheme=\"http://schemas.google.com/g/2005#kind\" term=\"http://schemas.google.com/photos/2007#photo\"/></entry>", "application/atom+xml");
-      multipart.addPart(file, item.imageType);
+      // album is known to be gone, don't send the whole photo for a 404.
+      // The cache only says so after the server did, unknown counts as found
+      if (!AlbumExistsCache.getInstance().hasAlbum(item.imageAuth, item.prefs.getString("email", ""), album)) {
+        throw new IOException("Album "+album+" does not exist");
+      }
 
-      // create new Multipart entity
-      MultipartNotificationEntity entity = new MultipartNotificationEntity(multipart, notification);
+      try {
+        hash = transfer(client, upload, album);
+      } catch (UploadException e) {
+        if (e.getStatusCode() != 401 && e.getStatusCode() != 403) {
+          throw e;
+        }
 
-      // get http params
-      HttpParams params = client.getParams();
+        // token expired or was revoked, refresh it once and try again
+        AuthTokenCache.getInstance().invalidate(item.imageAuth);
+        item.imageAuth = authenticate();
+        hash           = transfer(client, upload, album);
+      }
 
-      // set protocal and timeout for httpclient
-      params.setParameter(CoreProtocolPNames.PROTOCOL_VERSION, HttpVersion.HTTP_1_1);
-      params.setParameter(CoreConnectionPNames.SO_TIMEOUT, new Integer(15000));
-      params.setParameter(CoreConnectionPNames.CONNECTION_TIMEOUT, new Integer(15000));
+      finished(file, upload, hash, album);
+    } catch (Exception e) {
+      // album was deleted, check it again before next upload
+      if (e instanceof UploadException && ((UploadException) e).getStatusCode() == 404) {
+        AlbumExistsCache.getInstance().invalidate(item.prefs.getString("email", ""), album);
+      }
 
-      // set body with upload entity
-      post.setEntity(entity);
+      // file upload failed so abort request, connection is closed by the pool
+      cancel();
+      throw e;
+    }
 
-      // set headers
-      post.addHeader("Authorization", "GoogleLogin auth="+item.imageAuth);
-      post.addHeader("GData-Version", "2");
-      post.addHeader("MIME-version", "1.0");
+    return true;
+  }
 
-      // execute upload to picasa and get response and status
-      HttpResponse response = client.execute(post);
-      StatusLine line       = response.getStatusLine();
+  /**
+   * Get authentication string from cache
+   *
+   * @return Google authentication string
+   * @throws IOException When authentication failed
+   */
+  private String authenticate() throws IOException
+  {
+    String auth = AuthTokenCache.getInstance().get(item.prefs, context);
 
-      // return code indicates upload failed so throw exception
-      if (line.getStatusCode() > 201) {
-        throw new Exception("Failed upload");
-      }
+    if (auth == null) {
+      throw new IOException("Google authentication failed");
+    }
 
-      // shut down connection
-      client.getConnectionManager().shutdown();
+    return auth;
+  }
 
-      // notify user that file has been uploaded
-      notification.finished();
-    } catch (Exception e) {
-      // file upload failed so abort post and close connection
-      post.abort();
-      client.getConnectionManager().shutdown();
-
-      // get user preferences and number of retries for failed upload
-      SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-      int maxRetries          = Integer.valueOf(prefs.getString("retries", "").substring(1));
-
-      // check if we can connect to internet and if we still have any tries left
-      // to try upload again
-      if (CheckInternet.getInstance().canConnect(context, prefs) && retries < maxRetries) {
-        // remove notification for failed upload and queue item again
-        notification.remove();
-        queue.execute(new ImageUploader(context, queue, item, retries++));
-      } else {
-        // upload failed, so let's notify user
-        notification.failed();
+  /**
+   * Send file to Picasa
+   *
+   * @param client Http client
+   * @param upload File to upload, photo or downscaled copy
+   * @param album Picasa album id
+   * @return Hash built while uploading
+   * @throws IOException
+   */
+  private ContentHash transfer(HttpClient client, File upload, String album) throws IOException
+  {
+    ContentHash hash = new ContentHash();
+
+    // upload in chunks that can be resumed if user enabled it
+    if (item.prefs.getString("upload_mode", "").equals(MODE_RESUMABLE)) {
+      resumable = new ResumableUploader(context, client, item, notification, hash);
+      resumable.upload(upload);
+      return hash;
+    }
+
+    // new file and and entity
+    String url           = "http://picasaweb.google.com/data/feed/api/user/"+item.prefs.getString("email", "")+"/albumid/"+album;
+    Multipart multipart  = new Multipart("Media multipart posting", "END_OF_PART");
+    post                 = new HttpPost(url);
+
+    // create entity parts
+    multipart.addPart("<entry xmlns='http://www.w3.org/2005/Atom'><title>"+item.imageName+"</title><category scheme=\"http://schemas.google.com/g/2005#kind\" term=\"http://schemas.google.com/photos/2007#photo\"/></entry>", "application/atom+xml");
+    multipart.addPart(upload, item.imageType);
+    multipart.setHash(hash);
+
+    // create new Multipart entity, progress goes through monitor that
+    // aborts the upload when it stalls
+    TransferMonitor monitor            = new TransferMonitor(post, notification);
+    MultipartNotificationEntity entity = new MultipartNotificationEntity(multipart, monitor);
+
+    // set body with upload entity
+    post.setEntity(entity);
+
+    // set headers
+    post.addHeader("Authorization", "GoogleLogin auth="+item.imageAuth);
+    post.addHeader("GData-Version", "2");
+    post.addHeader("MIME-version", "1.0");
+
+    // timeouts follow size of upload and estimated bandwidth
+    BandwidthEstimator.getInstance().apply(post, upload.length());
+
+    // execute upload to picasa and get response and status
+    HttpResponse response;
+    monitor.start();
+
+    try {
+      response = client.execute(post);
+    } catch (IOException e) {
+      if (monitor.isStalled()) {
+        throw new IOException("Upload stalled");
       }
+
+      throw e;
+    } finally {
+      monitor.finish();
+    }
+
+    StatusLine line = response.getStatusLine();
+
+    // read response so connection can be reused
+    SharedHttpClient.consume(response);
+
+    // return code indicates upload failed so throw exception
+    if (line.getStatusCode() > 201) {
+      throw new UploadException("Failed upload", response);
+    }
+
+    return hash;
+  }
+
+  /**
+   * Record uploaded photo and notify user
+   *
+   * @param file Photo
+   * @param upload File that was uploaded, photo or downscaled copy
+   * @param hash Hash built while uploading
+   * @param album Picasa album id
+   */
+  private void finished(File file, File upload, ContentHash hash, String album)
+  {
+    // remember contents of the photo so it's not uploaded again, the
+    // hash of a downscaled copy was taken from the photo while decoding
+    byte[] photoHash = upload == file ? hash.getHash(file.length()) : item.imageHash;
+    DedupIndex.getInstance(context).putUploaded(file, photoHash, album);
+
+    // spool file is not needed anymore
+    new ImageTransformer(context).cleanup(item);
+
+    // notify user that file has been uploaded
+    notification.finished();
+  }
+
+  /**
+   * Abort upload that is running
+   */
+  public void cancel()
+  {
+    HttpPost current                = post;
+    ResumableUploader currentResume = resumable;
+
+    if (current != null) {
+      current.abort();
+    }
+
+    if (currentResume != null) {
+      currentResume.abort();
+    }
+  }
+
+  /**
+   * Update notification after upload failed
+   *
+   * @param retry If upload will be tried again
+   */
+  public void failed(boolean retry)
+  {
+    // spool file is not needed anymore
+    if (!retry) {
+      new ImageTransformer(context).cleanup(item);
+    }
+
+    if (notification == null) {
+      return;
+    }
+
+    // remove notification for failed upload that is queued again,
+    // otherwise let's notify user
+    if (retry) {
+      notification.remove();
+    } else {
+      notification.failed();
     }
   }
 }
@@ -21,26 +21,50 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+
 import org.apache.http.protocol.HTTP;
-import org.apache.http.util.ByteArrayBuffer;
 
 /**
- * Class to create MultiPart related body for use in uploading to Picasa
+ * Class to create MultiPart related body for use in uploading to Picasa.
+ * String parts are kept as bytes, file parts are only referenced and
+ * streamed from disk when the body is written
  *
  * @author Jan Peter Hooiveld
  */
 public class Multipart
 {
+  /**
+   * Listener that is informed about the number of file bytes written
+   */
+  public interface ProgressListener
+  {
+    /**
+     * Called after a block of file data was written to the output stream
+     *
+     * @param written Total number of file bytes written so far
+     * @param total Total number of file bytes in the body
+     */
+    public void transferred(long written, long total);
+  }
+
   /**
    * Defines the boundary used in the body for each part
    */
   private String boundary;
 
   /**
-   * Buffer that holds the content
+   * Parts of the body, either byte arrays or files
    */
-  private ByteArrayBuffer buffer = new ByteArrayBuffer(0);
+  private List<Object> parts = new ArrayList<Object>();
+
+  /**
+   * Hash that is built from file parts while they are written, may be null
+   */
+  private ContentHash hash;
 
   /**
    * Line ending
@@ -52,6 +76,11 @@ public class Multipart
    */
   private static final String DASHES = "--";
 
+  /**
+   * Size of the buffer used to stream files
+   */
+  private static final int BUFFER_SIZE = 8192;
+
   /**
    * Constructor
    *
@@ -91,61 +120,144 @@ public class Multipart
   }
 
   /**
-   * Adds new file to the body
+   * Adds new file to the body, the file is not read until the body is written
    * 
    * @param file File object
    * @param contentType File content type
    * @throws UnsupportedEncodingException
    * @throws FileNotFoundException
-   * @throws IOException
    */
-  public void addPart(File file, String contentType) throws UnsupportedEncodingException, FileNotFoundException, IOException
+  public void addPart(File file, String contentType) throws UnsupportedEncodingException, FileNotFoundException
   {
+    // fail early instead of halfway the upload
+    if (!file.isFile() || !file.canRead()) {
+      throw new FileNotFoundException("Could not read file "+file.getName());
+    }
+
     // merge start into content
     mergePart(createStart(contentType));
 
-    // create vars to reas file
-    InputStream is = new FileInputStream(file);
-    byte[] bytes   = new byte[(int)file.length()];
-    int offset     = 0;
-    int numRead    = 0;
+    // merge the file into content
+    parts.add(file);
+  }
 
-    // reaf file into byte array
-    while (offset < bytes.length && (numRead=is.read(bytes, offset, bytes.length - offset)) >= 0) {
-      offset += numRead;
-    }
+  /**
+   * Set hash that is built from file parts while they are written
+   *
+   * @param hash Content hash
+   */
+  public void setHash(ContentHash hash)
+  {
+    this.hash = hash;
+  }
 
-    // errror checking
-    if (offset < bytes.length) {
-      throw new IOException("Could not completely read file "+file.getName());
+  /**
+   * Get the exact length of the body in bytes
+   *
+   * @return Body length
+   * @throws UnsupportedEncodingException
+   */
+  public long getContentLength() throws UnsupportedEncodingException
+  {
+    long length = getEnd().length;
+
+    for (Object part : parts) {
+      if (part instanceof File) {
+        length += ((File)part).length();
+      } else {
+        length += ((byte[])part).length;
+      }
     }
 
-    // close input stream
-    is.close();
+    return length;
+  }
 
-    // merge the file into content
-    mergePart(bytes);
+  /**
+   * Get the number of file bytes in the body
+   *
+   * @return Length of all file parts
+   */
+  public long getFileLength()
+  {
+    long length = 0;
+
+    for (Object part : parts) {
+      if (part instanceof File) {
+        length += ((File)part).length();
+      }
+    }
+
+    return length;
   }
 
   /**
-   * Accumulate body content and return it
+   * Write the body to an output stream. Files are streamed from disk with a
+   * fixed size buffer so memory usage doesn't depend on the file size
    *
-   * @return Body content
-   * @throws UnsupportedEncodingException
+   * @param out Output stream to write to
+   * @param listener Listener for file progress, may be null
+   * @throws IOException
    */
-  public byte[] getContent() throws UnsupportedEncodingException
+  public void writeTo(OutputStream out, ProgressListener listener) throws IOException
   {
-    // create new byte array buffer and get start and end as byte arrays
-    ByteArrayBuffer endBuffer = new ByteArrayBuffer(0);
-    byte[] start              = buffer.toByteArray();
-    byte[] end                = (boundary+DASHES).getBytes(HTTP.DEFAULT_CONTENT_CHARSET);
+    byte[] tmp   = new byte[BUFFER_SIZE];
+    long total   = getFileLength();
+    long written = 0;
+
+    for (Object part : parts) {
+      // string parts are written directly
+      if (!(part instanceof File)) {
+        out.write((byte[])part);
+        continue;
+      }
+
+      File file      = (File)part;
+      long length    = file.length();
+      long remaining = length;
+      InputStream is = new FileInputStream(file);
+
+      try {
+        int l;
+
+        // read file and write to output stream, never write more than the
+        // length we reported so content length stays valid
+        while (remaining > 0 && (l = is.read(tmp, 0, (int)Math.min(tmp.length, remaining))) != -1) {
+          out.write(tmp, 0, l);
+
+          if (hash != null) {
+            hash.update(length - remaining, tmp, 0, l);
+          }
 
-    // append the start and end to new byte array buffer
-    endBuffer.append(start, 0, start.length);
-    endBuffer.append(end, 0, end.length);
+          remaining -= l;
+          written   += l;
 
-    // return buffer as content
-    return endBuffer.toByteArray();
+          if (listener != null) {
+            listener.transferred(written, total);
+          }
+        }
+      } finally {
+        is.close();
+      }
+
+      // errror checking, file shrunk while we were uploading
+      if (remaining > 0) {
+        throw new IOException("Could not completely read file "+file.getName());
+      }
+    }
+
+    // write end of body
+    out.write(getEnd());
+  }
+
+  /**
+   * Get the end of the body
+   *
+   * @return End boundary as bytes
+   * @throws UnsupportedEncodingException
+   */
+  private byte[] getEnd() throws UnsupportedEncodingException
+  {
+    return (boundary+DASHES).getBytes(HTTP.DEFAULT_CONTENT_CHARSET);
   }
 
   /**
@@ -160,23 +272,13 @@ public class Multipart
   }
 
   /**
-   * Merge content data from part
+   * Merge string part into content
    *
    * @param input Part data to merge into content
    * @throws UnsupportedEncodingException
    */
-  private void mergePart(Object input) throws UnsupportedEncodingException
+  private void mergePart(String input) throws UnsupportedEncodingException
   {
-    byte[] bytes = null;
-
-    if (input instanceof String) {
-      bytes = ((String)input).getBytes(HTTP.DEFAULT_CONTENT_CHARSET);
-    } else if (input instanceof byte[]) {
-      bytes = (byte[])input;
-    }
-
-    if (bytes != null) {
-      buffer.append(bytes, 0, bytes.length);
-    }
+    parts.add(input.getBytes(HTTP.DEFAULT_CONTENT_CHARSET));
   }
 }
@@ -16,49 +16,99 @@
  */
 package com.android.picasaphotouploader;
 
-import java.io.ByteArrayInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 
-import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.AbstractHttpEntity;
 
 /**
- * Class to override ByteArrayEntity for HttpClient to write multipart related
- * content and to progress upload monitoring for notification when uploading
- * a file to Picasa
+ * Entity for HttpClient that streams multipart related content straight
+ * from disk and updates the upload notification with the progress when
+ * uploading a file to Picasa
  *
  * @author Jan Peter Hooiveld
  */
-public class MultipartNotificationEntity extends ByteArrayEntity
+public class MultipartNotificationEntity extends AbstractHttpEntity
 {
   /**
-   * Upload notification
+   * Multipart class that creates the content
    */
-  private UploadNotification notification;
+  private Multipart multipart;
+
+  /**
+   * Listener for upload progress, normally the upload notification
+   */
+  private Multipart.ProgressListener notification;
+
+  /**
+   * Length of the body
+   */
+  private long length;
 
   /**
    * Constructor
    * 
    * @param multipart Multipart class that creates the content
+   * @param notification Listener for upload progress, normally the upload notification
    * @throws UnsupportedEncodingException
-   * @throws FileNotFoundException
-   * @throws IOException
    */
-  public MultipartNotificationEntity(Multipart multipart, UploadNotification notification) throws UnsupportedEncodingException, FileNotFoundException, IOException
+  public MultipartNotificationEntity(Multipart multipart, Multipart.ProgressListener notification) throws UnsupportedEncodingException
   {
-    // call parent to set content
-    super(multipart.getContent());
-
-    // add notification
+    // set class vars
+    this.multipart    = multipart;
     this.notification = notification;
+    this.length       = multipart.getContentLength();
 
     // set content type
     setContentType("multipart/related; boundary=\""+multipart.getBoundary()+"\"");
   }
 
+  /**
+   * Files are read again on each write so entity can be repeated
+   *
+   * @return Entity is repeatable
+   */
+  @Override
+  public boolean isRepeatable()
+  {
+    return true;
+  }
+
+  /**
+   * Get length of the body so no chunked encoding is needed
+   *
+   * @return Body length
+   */
+  @Override
+  public long getContentLength()
+  {
+    return length;
+  }
+
+  /**
+   * Content is only available by writing it
+   *
+   * @throws UnsupportedOperationException
+   */
+  @Override
+  public InputStream getContent() throws IOException
+  {
+    throw new UnsupportedOperationException("Multipart entity does not implement getContent()");
+  }
+
+  /**
+   * Entity is not a stream
+   *
+   * @return False
+   */
+  @Override
+  public boolean isStreaming()
+  {
+    return false;
+  }
+
   /**
    * Write content to outputstream of HttpClient
    *
@@ -73,40 +123,8 @@ public class MultipartNotificationEntity extends ByteArrayEntity
       throw new IllegalArgumentException("Output stream may not be null");
     }
 
-    // create file input stream
-    InputStream instream = new ByteArrayInputStream(this.content);
-
-    try {
-      // create vars
-      byte[] tmp    = new byte[4096];
-      int total     = (int) this.content.length;
-      int progress  = 0;
-      int increment = 10;
-      int l;
-      int percent;
-
-      // read file and write to http output stream
-      while ((l = instream.read(tmp)) != -1) {
-        // check progress
-        progress = progress + l;
-        percent  = Math.round(((float) progress / (float) total) * 100);
-
-        // if percent exceeds increment update status notification
-        // and adjust increment
-        if (percent > increment) {
-          increment += 10;
-          notification.update(progress);
-        }
-
-        // write to output stream
-        outstream.write(tmp, 0, l);
-      }
-
-      // flush output stream
-      outstream.flush();
-    } finally {
-      // close input stream
-      instream.close();
-    }
+    // write body through bandwidth limiter and flush output stream
+    multipart.writeTo(new ThrottledOutputStream(outstream), notification);
+    outstream.flush();
   }
 }
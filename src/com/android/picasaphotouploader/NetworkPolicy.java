@@ -0,0 +1,255 @@
+/**
+ * This file is part of Picasa Photo Uploader.
+ *
+ * Picasa Photo Uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Picasa Photo Uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Picasa Photo Uploader. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.android.picasaphotouploader;
+
+import android.content.SharedPreferences;
+
+/**
+ * Upload settings for a class of network. Wi-Fi, metered mobile and
+ * roaming each have their own parallelism, chunk size, bandwidth cap,
+ * photo size and whether uploads are allowed at all. The policy follows
+ * the network snapshot of the connectivity monitor, so it switches as soon
+ * as the network changes
+ */
+public class NetworkPolicy
+{
+  /**
+   * Wi-Fi or other unmetered network
+   */
+  public static final int CLASS_WIFI = 0;
+
+  /**
+   * Metered mobile network
+   */
+  public static final int CLASS_MOBILE = 1;
+
+  /**
+   * Mobile network while roaming
+   */
+  public static final int CLASS_ROAMING = 2;
+
+  /**
+   * Constant for Wi-FI setting from user preferences
+   */
+  private static final String CON_WIFI = "wifi";
+
+  /**
+   * Constant for roaming setting that allows uploads
+   */
+  private static final String ROAMING_ALLOWED = "allowed";
+
+  /**
+   * Largest chunk of a resumable upload while roaming, a failed chunk is
+   * sent again and roaming data is expensive
+   */
+  private static final int ROAMING_MAX_CHUNK = 256 * 1024;
+
+  /**
+   * Class of network
+   */
+  private int networkClass;
+
+  /**
+   * If uploads are allowed
+   */
+  private boolean allowed;
+
+  /**
+   * Maximum number of parallel uploads
+   */
+  private int parallelUploads;
+
+  /**
+   * Largest chunk of a resumable upload in bytes
+   */
+  private int maxChunkSize;
+
+  /**
+   * Bandwidth cap in bytes per second, 0 for unlimited
+   */
+  private long bandwidthLimit;
+
+  /**
+   * Longest side of uploaded photos or original
+   */
+  private String resize;
+
+  /**
+   * Jpeg quality of downscaled photos
+   */
+  private int quality;
+
+  /**
+   * Constructor
+   */
+  private NetworkPolicy() {}
+
+  /**
+   * Get policy for the network that is connected now
+   *
+   * @param prefs User preferences
+   * @return Policy of the current network class
+   */
+  public static NetworkPolicy current(SharedPreferences prefs)
+  {
+    return forClass(prefs, currentClass());
+  }
+
+  /**
+   * Get class of the network that is connected now
+   *
+   * @return Class of network
+   */
+  public static int currentClass()
+  {
+    ConnectivityMonitor monitor = ConnectivityMonitor.getInstance();
+
+    if (monitor.isWifi()) {
+      return CLASS_WIFI;
+    }
+
+    return monitor.isRoaming() ? CLASS_ROAMING : CLASS_MOBILE;
+  }
+
+  /**
+   * Get policy for a class of network from the user preferences
+   *
+   * @param prefs User preferences
+   * @param networkClass Class of network
+   * @return Policy
+   */
+  public static NetworkPolicy forClass(SharedPreferences prefs, int networkClass)
+  {
+    NetworkPolicy policy = new NetworkPolicy();
+    policy.networkClass  = networkClass;
+
+    // the connection preference only restricts mobile networks, uploads
+    // are always allowed on Wi-Fi
+    if (networkClass == CLASS_WIFI) {
+      policy.allowed         = true;
+      policy.parallelUploads = getNumber(prefs, "parallel_uploads", 2);
+      policy.maxChunkSize    = getNumber(prefs, "chunk_wifi", 4096) * 1024;
+      policy.bandwidthLimit  = getNumber(prefs, "limit_wifi", 0) * 1024L;
+      policy.resize          = prefs.getString("resize", "original");
+      policy.quality         = getNumber(prefs, "quality", 85);
+    } else {
+      policy.allowed         = !prefs.getString("connection", "").equals(CON_WIFI);
+      policy.parallelUploads = getNumber(prefs, "parallel_mobile", 1);
+      policy.maxChunkSize    = getNumber(prefs, "chunk_mobile", 1024) * 1024;
+      policy.bandwidthLimit  = getNumber(prefs, "limit_mobile", 0) * 1024L;
+      policy.resize          = prefs.getString("resize_mobile", "original");
+      policy.quality         = getNumber(prefs, "quality_mobile", 85);
+
+      // roaming uses the mobile settings one upload at a time in small
+      // chunks, and only when the user allowed it
+      if (networkClass == CLASS_ROAMING) {
+        policy.allowed         = policy.allowed && prefs.getString("roaming", "").equals(ROAMING_ALLOWED);
+        policy.parallelUploads = 1;
+        policy.maxChunkSize    = Math.min(policy.maxChunkSize, ROAMING_MAX_CHUNK);
+      }
+    }
+
+    return policy;
+  }
+
+  /**
+   * Read number from preference, values are stored with a leading underscore
+   *
+   * @param prefs User preferences
+   * @param key Preference key
+   * @param defaultValue Value when preference is missing or invalid
+   * @return Number
+   */
+  private static int getNumber(SharedPreferences prefs, String key, int defaultValue)
+  {
+    try {
+      return Integer.valueOf(prefs.getString(key, "_"+defaultValue).substring(1));
+    } catch (Exception e) {
+      return defaultValue;
+    }
+  }
+
+  /**
+   * Get class of network
+   *
+   * @return Class of network
+   */
+  public int getNetworkClass()
+  {
+    return networkClass;
+  }
+
+  /**
+   * Check if uploads are allowed
+   *
+   * @return Uploads allowed or not
+   */
+  public boolean isAllowed()
+  {
+    return allowed;
+  }
+
+  /**
+   * Get maximum number of parallel uploads
+   *
+   * @return Parallel uploads
+   */
+  public int getParallelUploads()
+  {
+    return parallelUploads;
+  }
+
+  /**
+   * Get largest chunk of a resumable upload
+   *
+   * @return Chunk size in bytes
+   */
+  public int getMaxChunkSize()
+  {
+    return maxChunkSize;
+  }
+
+  /**
+   * Get bandwidth cap
+   *
+   * @return Bytes per second, 0 for unlimited
+   */
+  public long getBandwidthLimit()
+  {
+    return bandwidthLimit;
+  }
+
+  /**
+   * Get longest side of uploaded photos
+   *
+   * @return Size in pixels or original
+   */
+  public String getResize()
+  {
+    return resize;
+  }
+
+  /**
+   * Get jpeg quality of downscaled photos
+   *
+   * @return Quality
+   */
+  public int getQuality()
+  {
+    return quality;
+  }
+}
@@ -0,0 +1,420 @@
+/**
+ * This file is part of Picasa Photo Uploader.
+ *
+ * Picasa Photo Uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Picasa Photo Uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Picasa Photo Uploader. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.android.picasaphotouploader;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.StringEntity;
+
+/**
+ * Class to upload an image to Picasa with the GData resumable upload
+ * protocol. The file is sent in chunks and the offset confirmed by the
+ * server is stored after each chunk, so a failed upload continues from
+ * the last confirmed byte instead of starting over
+ */
+public class ResumableUploader
+{
+  /**
+   * Status code the server returns when more data is expected
+   */
+  private static final int RESUME_INCOMPLETE = 308;
+
+  /**
+   * Chunks must be a multiple of this size, except the last one
+   */
+  private static final int CHUNK_UNIT = 256 * 1024;
+
+  /**
+   * Smallest chunk size
+   */
+  private static final int MIN_CHUNK = CHUNK_UNIT;
+
+  /**
+   * Largest chunk size
+   */
+  private static final int MAX_CHUNK = 16 * CHUNK_UNIT;
+
+  /**
+   * Chunks that take less time than this grow, chunks that take longer shrink
+   */
+  private static final long TARGET_CHUNK_MILLIS = 5000;
+
+  /**
+   * Feed that upload sessions are created in
+   */
+  private static final String UPLOAD_URL = "http://picasaweb.google.com/data/upload/resumable/feed/api/user/";
+
+  /**
+   * Current chunk size, shared by all uploads since it reflects link quality
+   */
+  private static int chunkSize = MIN_CHUNK;
+
+  /**
+   * Http client used for requests
+   */
+  private HttpClient client;
+
+  /**
+   * Image queue item
+   */
+  private ImageItem item;
+
+  /**
+   * Upload notification
+   */
+  private UploadNotification notification;
+
+  /**
+   * Hash that is built while the file is uploaded
+   */
+  private ContentHash hash;
+
+  /**
+   * Store for session urls and confirmed offsets
+   */
+  private UploadSessionStore store;
+
+  /**
+   * Request that is currently executed
+   */
+  private volatile HttpRequestBase request;
+
+  /**
+   * Feed that upload sessions are created in
+   */
+  private String uploadUrl = UPLOAD_URL;
+
+  /**
+   * Constructor
+   *
+   * @param context Application context
+   * @param client Http client used for requests
+   * @param item Image queue item
+   * @param notification Upload notification
+   * @param hash Hash that is built while the file is uploaded
+   */
+  public ResumableUploader(Context context, HttpClient client, ImageItem item, UploadNotification notification, ContentHash hash)
+  {
+    this.client       = client;
+    this.item         = item;
+    this.notification = notification;
+    this.hash         = hash;
+    this.store        = new UploadSessionStore(context);
+  }
+
+  /**
+   * Upload image, continue an earlier session if there is one
+   *
+   * @param file File to upload, image or downscaled copy
+   * @throws IOException
+   */
+  public void upload(File file) throws IOException
+  {
+    long length = file.length();
+    String url  = store.getUrl(item, file);
+    long offset = -1;
+
+    // ask server how much of an earlier session it received, continue
+    // from the offset it confirmed last when it can't be asked
+    if (url != null) {
+      try {
+        offset = queryOffset(url, length);
+      } catch (UploadException e) {
+        throw e;
+      } catch (IOException e) {
+        offset = store.getOffset(item);
+        Log.w("ResumableUploader", "Could not query session of "+item.imageName+", continuing at confirmed byte "+offset, e);
+      }
+
+      if (offset == length) {
+        store.remove(item);
+        return;
+      }
+    }
+
+    // no usable session so start a new one
+    if (offset < 0) {
+      url    = createSession(length);
+      offset = 0;
+      store.start(item, url, file);
+    } else if (offset > 0) {
+      Log.i("ResumableUploader", "Resuming "+item.imageName+" at byte "+offset+" of "+length);
+    }
+
+    // send chunks until server has received the complete file
+    while (offset < length) {
+      // policy of network may have changed since last chunk
+      int maxChunk = NetworkPolicy.current(item.prefs).getMaxChunkSize();
+      int size     = (int)Math.min(Math.min(chunkSize, maxChunk), length - offset);
+      long start = System.currentTimeMillis();
+
+      try {
+        offset = sendChunk(url, file, offset, size, length);
+      } catch (IOException e) {
+        adaptChunkSize(false, 0);
+        throw e;
+      }
+
+      adaptChunkSize(true, System.currentTimeMillis() - start);
+    }
+
+    // upload is complete
+    store.remove(item);
+  }
+
+  /**
+   * Create upload sessions in another feed, used to run the protocol
+   * against a local server
+   *
+   * @param uploadUrl Feed url up to the user name
+   */
+  void setUploadUrl(String uploadUrl)
+  {
+    this.uploadUrl = uploadUrl;
+  }
+
+  /**
+   * Abort request that is currently executed
+   */
+  public void abort()
+  {
+    HttpRequestBase current = request;
+
+    if (current != null) {
+      current.abort();
+    }
+  }
+
+  /**
+   * Create new upload session, the photo entry is sent as metadata
+   *
+   * @param length Length of the file
+   * @return Session url
+   * @throws IOException
+   */
+  private String createSession(long length) throws IOException
+  {
+    String url    = uploadUrl+item.prefs.getString("email", "")+"/albumid/"+item.prefs.getString("album", "");
+    HttpPost post = new HttpPost(url);
+
+    // set metadata and headers
+    StringEntity entry = new StringEntity("<entry xmlns='http://www.w3.org/2005/Atom'><title>"+item.imageName+"</title><category scheme=\"http://schemas.google.com/g/2005#kind\" term=\"http://schemas.google.com/photos/2007#photo\"/></entry>", "UTF-8");
+    entry.setContentType("application/atom+xml");
+    post.setEntity(entry);
+    addHeaders(post);
+    post.addHeader("X-Upload-Content-Type", item.imageType);
+    post.addHeader("X-Upload-Content-Length", String.valueOf(length));
+
+    HttpResponse response = execute(post, 0, null);
+    int status            = response.getStatusLine().getStatusCode();
+    Header location       = response.getFirstHeader("Location");
+
+    if (status != 200 && status != 201 || location == null) {
+      throw new UploadException("Could not create upload session", response);
+    }
+
+    return location.getValue();
+  }
+
+  /**
+   * Ask server for the offset it received of an earlier session
+   *
+   * @param url Session url
+   * @param length Length of the file
+   * @return Received offset or -1 if session is no longer valid
+   * @throws IOException
+   */
+  private long queryOffset(String url, long length) throws IOException
+  {
+    HttpPut put = new HttpPut(url);
+    addHeaders(put);
+    put.addHeader("Content-Range", "bytes */"+length);
+
+    HttpResponse response = execute(put, 0, null);
+    int status            = response.getStatusLine().getStatusCode();
+
+    if (status == 200 || status == 201) {
+      return length;
+    }
+
+    // no range means the session exists but nothing was received, the
+    // upload starts at the first byte of the same session
+    if (status == RESUME_INCOMPLETE) {
+      long received = parseRange(response);
+      store.setOffset(item, received);
+      return received;
+    }
+
+    // session expired or unknown, server has to start over
+    if (status == 404 || status == 410) {
+      store.remove(item);
+      return -1;
+    }
+
+    throw new UploadException("Could not query upload session", response);
+  }
+
+  /**
+   * Send a chunk of the file
+   *
+   * @param url Session url
+   * @param file File to upload
+   * @param offset Offset of the chunk
+   * @param size Size of the chunk
+   * @param length Length of the file
+   * @return Offset confirmed by the server
+   * @throws IOException
+   */
+  private long sendChunk(String url, File file, long offset, int size, long length) throws IOException
+  {
+    HttpPut put             = new HttpPut(url);
+    TransferMonitor monitor = new TransferMonitor(put, notification, offset + size);
+    put.setEntity(new FileRangeEntity(file, offset, size, item.imageType, monitor, hash));
+    addHeaders(put);
+    put.addHeader("Content-Range", "bytes "+offset+"-"+(offset + size - 1)+"/"+length);
+
+    HttpResponse response = execute(put, size, monitor);
+    int status            = response.getStatusLine().getStatusCode();
+
+    if (status == 200 || status == 201) {
+      return length;
+    }
+
+    if (status == RESUME_INCOMPLETE) {
+      long confirmed = parseRange(response);
+
+      // server must make progress, otherwise we would loop forever
+      if (confirmed <= offset) {
+        throw new IOException("Server did not accept chunk at "+offset+", "+(confirmed == 0 ? "nothing" : confirmed+" bytes")+" received");
+      }
+
+      store.setOffset(item, confirmed);
+
+      return confirmed;
+    }
+
+    if (status == 404 || status == 410) {
+      store.remove(item);
+    }
+
+    throw new UploadException("Failed upload of chunk", response);
+  }
+
+  /**
+   * Execute request and release the connection
+   *
+   * @param request Request to execute
+   * @param size Bytes of file data in the request body
+   * @param monitor Monitor of the request body, null if there is no file data
+   * @return Response of the server
+   * @throws IOException
+   */
+  private HttpResponse execute(HttpRequestBase request, long size, TransferMonitor monitor) throws IOException
+  {
+    this.request = request;
+
+    // timeouts follow size of chunk and estimated bandwidth
+    BandwidthEstimator.getInstance().apply(request, size);
+
+    if (monitor != null) {
+      monitor.start();
+    }
+
+    try {
+      HttpResponse response = client.execute(request);
+
+      if (response.getEntity() != null) {
+        response.getEntity().consumeContent();
+      }
+
+      return response;
+    } catch (IOException e) {
+      if (monitor != null && monitor.isStalled()) {
+        throw new IOException("Upload stalled");
+      }
+
+      throw e;
+    } finally {
+      this.request = null;
+
+      if (monitor != null) {
+        monitor.finish();
+      }
+    }
+  }
+
+  /**
+   * Add authentication and protocol headers to request
+   *
+   * @param request Request to add headers to
+   */
+  private void addHeaders(HttpRequestBase request)
+  {
+    request.addHeader("Authorization", "GoogleLogin auth="+item.imageAuth);
+    request.addHeader("GData-Version", "2");
+  }
+
+  /**
+   * Get offset from Range header, the header contains the last received
+   * byte. The server leaves the header out of a 308 response when it has
+   * not received any bytes of the session yet
+   *
+   * @param response Response of the server
+   * @return Offset of the next byte to send, 0 if nothing was received
+   */
+  private long parseRange(HttpResponse response)
+  {
+    Header range = response.getFirstHeader("Range");
+
+    if (range == null) {
+      return 0;
+    }
+
+    try {
+      String value = range.getValue();
+      return Long.parseLong(value.substring(value.lastIndexOf('-') + 1).trim()) + 1;
+    } catch (Exception e) {
+      return 0;
+    }
+  }
+
+  /**
+   * Grow chunk size when chunks are sent quickly, shrink it when they are
+   * slow or fail so less data is lost when the link drops
+   *
+   * @param success If chunk was sent
+   * @param millis Time it took to send the chunk
+   */
+  private static synchronized void adaptChunkSize(boolean success, long millis)
+  {
+    if (!success || millis > TARGET_CHUNK_MILLIS * 2) {
+      chunkSize = Math.max(MIN_CHUNK, chunkSize / 2 / CHUNK_UNIT * CHUNK_UNIT);
+    } else if (millis < TARGET_CHUNK_MILLIS / 2) {
+      chunkSize = Math.min(MAX_CHUNK, chunkSize * 2);
+    }
+  }
+}
@@ -0,0 +1,168 @@
+/**
+ * This file is part of Picasa Photo Uploader.
+ *
+ * Picasa Photo Uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Picasa Photo Uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Picasa Photo Uploader. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.android.picasaphotouploader;
+
+import android.util.Log;
+
+import java.util.Random;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Puts failed uploads back in the upload engine after a delay. The delay
+ * grows exponentially with the number of attempts, is randomized so
+ * uploads that failed together don't retry together, and follows the
+ * Retry-After header when the server sends one
+ */
+public class RetryScheduler
+{
+  /**
+   * Singleton that refers to this class
+   */
+  private static RetryScheduler instance;
+
+  /**
+   * Delay before the first retry
+   */
+  private static final long BASE_DELAY = 5000;
+
+  /**
+   * Longest delay from backoff
+   */
+  private static final long MAX_DELAY = 5 * 60 * 1000;
+
+  /**
+   * Longest delay we accept from a Retry-After header
+   */
+  private static final long MAX_RETRY_AFTER = 30 * 60 * 1000;
+
+  /**
+   * Timer thread, waiting retries don't hold a worker
+   */
+  private ScheduledThreadPoolExecutor timer;
+
+  /**
+   * Random generator for jitter
+   */
+  private Random random = new Random();
+
+  /**
+   * Constructor
+   */
+  private RetryScheduler() {}
+
+  /**
+   * Singleton function
+   *
+   * @return Instance of this class
+   */
+  public static synchronized RetryScheduler getInstance()
+  {
+    if (instance == null) {
+      instance = new RetryScheduler();
+    }
+
+    return instance;
+  }
+
+  /**
+   * Block cloning since we use singleton
+   *
+   * @return
+   * @throws CloneNotSupportedException
+   */
+  @Override
+  public Object clone() throws CloneNotSupportedException
+  {
+    throw new CloneNotSupportedException();
+  }
+
+  /**
+   * Schedule image to be queued again
+   *
+   * @param item Image queue item, attempts must already include failed attempt
+   * @param error Exception of the failed attempt, may be null
+   * @param engine Engine to queue image in
+   * @return Delay in milliseconds
+   */
+  public synchronized long schedule(final ImageItem item, Exception error, final UploadEngine engine)
+  {
+    long delay = getDelay(item.attempts, error);
+
+    if (timer == null) {
+      timer = new ScheduledThreadPoolExecutor(1);
+    }
+
+    Log.i("RetryScheduler", "Retry "+item.attempts+" of "+item.imageName+" in "+delay+" ms");
+
+    timer.schedule(new Runnable() {
+      @Override
+      public void run()
+      {
+        engine.retry(item);
+      }
+    }, delay, TimeUnit.MILLISECONDS);
+
+    return delay;
+  }
+
+  /**
+   * Drop all waiting retries
+   */
+  public synchronized void cancelAll()
+  {
+    if (timer != null) {
+      timer.shutdownNow();
+      timer = null;
+    }
+  }
+
+  /**
+   * Get number of retries that are waiting
+   *
+   * @return Waiting retries
+   */
+  public synchronized int getWaiting()
+  {
+    return timer == null ? 0 : timer.getQueue().size();
+  }
+
+  /**
+   * Calculate delay before next attempt
+   *
+   * @param attempts Number of failed attempts
+   * @param error Exception of the failed attempt, may be null
+   * @return Delay in milliseconds
+   */
+  private long getDelay(int attempts, Exception error)
+  {
+    // exponential backoff with equal jitter, half of the delay is random
+    long backoff = Math.min(MAX_DELAY, BASE_DELAY << Math.min(attempts - 1, 16));
+    long delay   = backoff / 2 + (long)(random.nextDouble() * (backoff / 2));
+
+    // server told us when to come back
+    if (error instanceof UploadException) {
+      long retryAfter = ((UploadException)error).getRetryAfter();
+
+      if (retryAfter >= 0) {
+        delay = Math.max(delay, Math.min(retryAfter, MAX_RETRY_AFTER));
+      }
+    }
+
+    return delay;
+  }
+}
@@ -0,0 +1,242 @@
+/**
+ * This file is part of Picasa Photo Uploader.
+ *
+ * Picasa Photo Uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Picasa Photo Uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Picasa Photo Uploader. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.android.picasaphotouploader;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.provider.MediaStore;
+import android.provider.MediaStore.Images.Media;
+import android.util.Log;
+
+import java.util.TreeSet;
+
+/**
+ * Class to persist how far the image table was scanned. The highest id seen
+ * and the version of the media database are stored, so images added while
+ * the application was not running are found on the next start and ids of a
+ * different sdcard are not trusted. Scanned images are tracked until they
+ * are journaled or dropped, the stored id never passes an image that is
+ * still on its way to the upload queue
+ */
+public class ScanCheckpoint
+{
+  /**
+   * Name of preferences file
+   */
+  private static final String PREFS_NAME = "scan_checkpoint";
+
+  /**
+   * Maximum number of images found on start
+   */
+  private static final int CATCH_UP_LIMIT = 200;
+
+  /**
+   * Only images that have a file on the sdcard
+   */
+  private static final String IMAGES = Media.MIME_TYPE+" LIKE 'image/%' AND "+Media.DATA+" NOT NULL";
+
+  /**
+   * Application context
+   */
+  private Context context;
+
+  /**
+   * Stored checkpoint
+   */
+  private SharedPreferences prefs;
+
+  /**
+   * Ids of scanned images that are not journaled or dropped yet
+   */
+  private TreeSet<Integer> pending = new TreeSet<Integer>();
+
+  /**
+   * Highest id that was scanned, -1 before the first scan
+   */
+  private int scanned = -1;
+
+  /**
+   * Highest id that was stored
+   */
+  private int committed = -1;
+
+  /**
+   * Set by restore when the media database changed and the whole volume
+   * has to be checked
+   */
+  private boolean reconcile = false;
+
+  /**
+   * Constructor
+   *
+   * @param context Application context
+   */
+  public ScanCheckpoint(Context context)
+  {
+    this.context = context;
+    this.prefs   = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+  }
+
+  /**
+   * Store highest id that was scanned
+   *
+   * @param maxId Highest image id seen
+   */
+  public void save(int maxId)
+  {
+    prefs.edit()
+      .putInt("max_id", maxId)
+      .putString("version", getVersion())
+      .apply();
+  }
+
+  /**
+   * Start tracking image that was scanned, must be called before the page
+   * it was read in is reported
+   *
+   * @param id Image id
+   */
+  public synchronized void pending(int id)
+  {
+    pending.add(id);
+  }
+
+  /**
+   * Report highest id of a scanned page
+   *
+   * @param maxId Highest image id seen
+   */
+  public synchronized void scanned(int maxId)
+  {
+    scanned = Math.max(scanned, maxId);
+    commit();
+  }
+
+  /**
+   * Stop tracking image after it was journaled or dropped
+   *
+   * @param id Image id
+   */
+  public synchronized void done(int id)
+  {
+    pending.remove(id);
+    commit();
+  }
+
+  /**
+   * Store highest id below which every scanned image is journaled or dropped
+   */
+  private void commit()
+  {
+    if (scanned == -1) {
+      return;
+    }
+
+    int maxId = pending.isEmpty() ? scanned : pending.first() - 1;
+
+    if (maxId > committed) {
+      committed = maxId;
+      save(maxId);
+    }
+  }
+
+  /**
+   * Get id from which scanning continues. On first start only new images
+   * are scanned. When the media database changed the ids can't be trusted,
+   * scanning continues from the highest id and the whole volume has to be
+   * reconciled, see needsReconcile(). The number of images found after a
+   * normal restart is limited to the newest ones
+   *
+   * @return Highest id that was already scanned
+   */
+  public int restore()
+  {
+    int highest = queryId(Media._ID+" DESC LIMIT 1");
+
+    // first start, only images added from now on are uploaded
+    if (!prefs.contains("max_id")) {
+      save(highest);
+      return highest;
+    }
+
+    int maxId = prefs.getInt("max_id", highest);
+
+    // ids of other media database can't be trusted, all images of the
+    // volume are checked against the dedup index by the backfill job
+    if (!getVersion().equals(prefs.getString("version", "")) || maxId > highest) {
+      Log.i("ScanCheckpoint", "Media database changed, reconciling whole volume up to id "+highest);
+      reconcile = true;
+      return highest;
+    }
+
+    // limit catch up to newest images
+    int oldest = queryId(Media._ID+" DESC LIMIT "+(CATCH_UP_LIMIT - 1)+",1");
+
+    if (oldest != -1 && maxId < oldest - 1) {
+      Log.w("ScanCheckpoint", "More than "+CATCH_UP_LIMIT+" new images, skipping images up to id "+(oldest - 1));
+      maxId = oldest - 1;
+    }
+
+    return maxId;
+  }
+
+  /**
+   * Check if restore found a changed media database. The caller starts
+   * the reconcile and saves the returned id afterwards, so a reconcile is
+   * not lost when the application stops in between
+   *
+   * @return If whole volume has to be reconciled
+   */
+  public boolean needsReconcile()
+  {
+    return reconcile;
+  }
+
+  /**
+   * Get version of media database, changes when a different sdcard is used
+   *
+   * @return Version of media database
+   */
+  private String getVersion()
+  {
+    String version = MediaStore.getVersion(context);
+
+    return version == null ? "" : version;
+  }
+
+  /**
+   * Get id of first image in sort order
+   *
+   * @param sortOrder Sort order with limit
+   * @return Image id or -1 if there are no images
+   */
+  private int queryId(String sortOrder)
+  {
+    Cursor cursor = context.getContentResolver().query(Media.EXTERNAL_CONTENT_URI, new String[]{ Media._ID }, IMAGES, null, sortOrder);
+
+    if (cursor == null) {
+      return -1;
+    }
+
+    try {
+      return cursor.moveToFirst() ? cursor.getInt(0) : -1;
+    } finally {
+      cursor.close();
+    }
+  }
+}
@@ -0,0 +1,281 @@
+/**
+ * This file is part of Picasa Photo Uploader.
+ *
+ * Picasa Photo Uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Picasa Photo Uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Picasa Photo Uploader. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.android.picasaphotouploader;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.HttpClient;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+
+import android.util.Log;
+
+/**
+ * Application wide http client with a thread safe connection pool so
+ * uploads and album requests reuse open connections instead of setting
+ * up a new connection for every request
+ */
+public class SharedHttpClient
+{
+  /**
+   * Singleton that refers to this class
+   */
+  private static SharedHttpClient instance;
+
+  /**
+   * Maximum number of connections in the pool
+   */
+  private static final int MAX_TOTAL_CONNECTIONS = 8;
+
+  /**
+   * Maximum number of connections to a single host
+   */
+  private static final int MAX_CONNECTIONS_PER_ROUTE = 4;
+
+  /**
+   * Default timeout for connecting and reading
+   */
+  private static final int TIMEOUT = 15000;
+
+  /**
+   * Time to keep a connection alive if server doesn't tell us
+   */
+  private static final long KEEP_ALIVE_MILLIS = 30000;
+
+  /**
+   * Interval at which expired and idle connections are closed
+   */
+  private static final long EVICT_INTERVAL_MILLIS = 15000;
+
+  /**
+   * Http client that uses the pool
+   */
+  private DefaultHttpClient client;
+
+  /**
+   * Thread that closes expired and idle connections
+   */
+  private Thread evictor;
+
+  /**
+   * Constructor
+   */
+  private SharedHttpClient()
+  {
+    // set protocol, timeouts and pool limits
+    HttpParams params = new BasicHttpParams();
+    HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+    HttpProtocolParams.setContentCharset(params, HTTP.UTF_8);
+    HttpConnectionParams.setConnectionTimeout(params, TIMEOUT);
+    HttpConnectionParams.setSoTimeout(params, TIMEOUT);
+    HttpConnectionParams.setStaleCheckingEnabled(params, true);
+    ConnManagerParams.setMaxTotalConnections(params, MAX_TOTAL_CONNECTIONS);
+    ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(MAX_CONNECTIONS_PER_ROUTE));
+    ConnManagerParams.setTimeout(params, TIMEOUT);
+
+    // register schemes
+    SchemeRegistry registry = new SchemeRegistry();
+    registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+    registry.register(new Scheme("https", TlsContext.getInstance().getHttpsSocketFactory(), 443));
+
+    // create client with thread safe pool
+    client = new DefaultHttpClient(new ThreadSafeClientConnManager(params, registry), params);
+    client.setKeepAliveStrategy(new KeepAliveStrategy());
+
+    // start evicting idle connections
+    evictor = new Thread(new IdleConnectionEvictor(client.getConnectionManager()), "IdleConnectionEvictor");
+    evictor.setDaemon(true);
+    evictor.start();
+  }
+
+  /**
+   * Singleton function
+   *
+   * @return Instance of this class
+   */
+  public static synchronized SharedHttpClient getInstance()
+  {
+    if (instance == null) {
+      instance = new SharedHttpClient();
+    }
+
+    return instance;
+  }
+
+  /**
+   * Block cloning since we use singleton
+   *
+   * @return
+   * @throws CloneNotSupportedException
+   */
+  @Override
+  public Object clone() throws CloneNotSupportedException
+  {
+    throw new CloneNotSupportedException();
+  }
+
+  /**
+   * Get the pooled http client, never shut down its connection manager
+   *
+   * @return Http client
+   */
+  public HttpClient getClient()
+  {
+    return client;
+  }
+
+  /**
+   * Open a connection to host and put it in the pool as idle connection,
+   * so the next request to host doesn't wait for connection setup
+   *
+   * @param target Host to connect to
+   * @param lifetime Time the idle connection may be reused in milliseconds
+   * @throws IOException When connection could not be opened
+   * @throws InterruptedException When waiting for the pool was interrupted
+   */
+  public void warm(HttpHost target, long lifetime) throws IOException, InterruptedException
+  {
+    ClientConnectionManager manager = client.getConnectionManager();
+    HttpRoute route                 = new HttpRoute(target);
+    ManagedClientConnection conn    = manager.requestConnection(route, null).getConnection(TIMEOUT, TimeUnit.MILLISECONDS);
+
+    try {
+      if (!conn.isOpen()) {
+        conn.open(route, new BasicHttpContext(), client.getParams());
+      }
+
+      conn.markReusable();
+    } finally {
+      manager.releaseConnection(conn, lifetime, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Close all idle connections, used when the network changed and
+   * connections of the old network are dead
+   */
+  public void closeIdle()
+  {
+    client.getConnectionManager().closeIdleConnections(0, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Read rest of response body so connection goes back to the pool
+   *
+   * @param response Response to consume, may be null
+   */
+  public static void consume(HttpResponse response)
+  {
+    if (response == null) {
+      return;
+    }
+
+    HttpEntity entity = response.getEntity();
+
+    try {
+      if (entity != null) {
+        entity.consumeContent();
+      }
+    } catch (Exception e) {
+      Log.w("SharedHttpClient", "Could not consume response", e);
+    }
+  }
+
+  /**
+   * Keep connections alive as long as server allows, or a default time if
+   * server doesn't send a Keep-Alive header
+   */
+  private static class KeepAliveStrategy implements ConnectionKeepAliveStrategy
+  {
+    @Override
+    public long getKeepAliveDuration(HttpResponse response, HttpContext context)
+    {
+      Header header = response.getFirstHeader("Keep-Alive");
+
+      if (header != null) {
+        for (String element : header.getValue().split(",")) {
+          String[] pair = element.trim().split("=");
+
+          if (pair.length == 2 && pair[0].trim().equalsIgnoreCase("timeout")) {
+            try {
+              return Long.parseLong(pair[1].trim()) * 1000;
+            } catch (NumberFormatException e) {
+            }
+          }
+        }
+      }
+
+      return KEEP_ALIVE_MILLIS;
+    }
+  }
+
+  /**
+   * Close expired connections and connections that were idle too long
+   */
+  private static class IdleConnectionEvictor implements Runnable
+  {
+    /**
+     * Connection manager of the pool
+     */
+    private ClientConnectionManager manager;
+
+    /**
+     * Constructor
+     *
+     * @param manager Connection manager of the pool
+     */
+    public IdleConnectionEvictor(ClientConnectionManager manager)
+    {
+      this.manager = manager;
+    }
+
+    @Override
+    public void run()
+    {
+      try {
+        while (true) {
+          Thread.sleep(EVICT_INTERVAL_MILLIS);
+          manager.closeExpiredConnections();
+          manager.closeIdleConnections(KEEP_ALIVE_MILLIS, TimeUnit.MILLISECONDS);
+        }
+      } catch (InterruptedException e) {
+      }
+    }
+  }
+}
@@ -0,0 +1,70 @@
+/**
+ * This file is part of Picasa Photo Uploader.
+ *
+ * Picasa Photo Uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Picasa Photo Uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Picasa Photo Uploader. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.android.picasaphotouploader;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Output stream that passes writes through the bandwidth limiter in small
+ * blocks, so a throttled upload still makes steady progress
+ */
+public class ThrottledOutputStream extends FilterOutputStream
+{
+  /**
+   * Largest block written at once
+   */
+  private static final int BLOCK_SIZE = 4096;
+
+  /**
+   * Limiter that is shared by all uploads
+   */
+  private BandwidthLimiter limiter;
+
+  /**
+   * Constructor
+   *
+   * @param out Output stream of the http client
+   */
+  public ThrottledOutputStream(OutputStream out)
+  {
+    super(out);
+    this.limiter = BandwidthLimiter.getInstance();
+  }
+
+  @Override
+  public void write(int b) throws IOException
+  {
+    limiter.acquire(1);
+    out.write(b);
+  }
+
+  @Override
+  public void write(byte[] buffer, int offset, int length) throws IOException
+  {
+    while (length > 0) {
+      int block = Math.min(length, BLOCK_SIZE);
+
+      limiter.acquire(block);
+      out.write(buffer, offset, block);
+
+      offset += block;
+      length -= block;
+    }
+  }
+}
@@ -0,0 +1,332 @@
+/**
+ * This file is part of Picasa Photo Uploader.
+ *
+ * Picasa Photo Uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Picasa Photo Uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Picasa Photo Uploader. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.android.picasaphotouploader;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.security.GeneralSecurityException;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.scheme.LayeredSocketFactory;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+
+/**
+ * Class that holds the TLS context shared by authentication and upload
+ * connections. The context is built once and keeps a client session cache,
+ * so later connections to the same host resume the session instead of
+ * doing a full handshake. Global connection defaults are not changed
+ */
+public class TlsContext
+{
+  /**
+   * Singleton that refers to this class
+   */
+  private static TlsContext instance;
+
+  /**
+   * Number of sessions kept in the cache
+   */
+  private static final int SESSION_CACHE_SIZE = 16;
+
+  /**
+   * Time a session can be resumed in seconds
+   */
+  private static final int SESSION_TIMEOUT = 60 * 60;
+
+  /**
+   * Factory for sockets of the shared context
+   */
+  private SSLSocketFactory factory;
+
+  /**
+   * Number of full handshakes
+   */
+  private int fullCount = 0;
+
+  /**
+   * Total time of full handshakes
+   */
+  private long fullMillis = 0;
+
+  /**
+   * Number of resumed handshakes
+   */
+  private int resumedCount = 0;
+
+  /**
+   * Total time of resumed handshakes
+   */
+  private long resumedMillis = 0;
+
+  /**
+   * Constructor, builds the context with the trust store of the platform
+   *
+   * @throws GeneralSecurityException
+   */
+  private TlsContext() throws GeneralSecurityException
+  {
+    SSLContext context = SSLContext.getInstance("TLS");
+    context.init(null, null, null);
+
+    SSLSessionContext sessions = context.getClientSessionContext();
+
+    if (sessions != null) {
+      sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+      sessions.setSessionTimeout(SESSION_TIMEOUT);
+    }
+
+    factory = context.getSocketFactory();
+  }
+
+  /**
+   * Singleton function
+   *
+   * @return Instance of this class
+   */
+  public static synchronized TlsContext getInstance()
+  {
+    if (instance == null) {
+      try {
+        instance = new TlsContext();
+      } catch (GeneralSecurityException e) {
+        throw new IllegalStateException("TLS is not available", e);
+      }
+    }
+
+    return instance;
+  }
+
+  /**
+   * Block cloning since we use singleton
+   *
+   * @return
+   * @throws CloneNotSupportedException
+   */
+  @Override
+  public Object clone() throws CloneNotSupportedException
+  {
+    throw new CloneNotSupportedException();
+  }
+
+  /**
+   * Use shared context for connection
+   *
+   * @param connection Https connection
+   */
+  public void apply(HttpsURLConnection connection)
+  {
+    connection.setSSLSocketFactory(new TimedSocketFactory());
+  }
+
+  /**
+   * Do a handshake with host so the session is in the cache and the next
+   * connection to host resumes it
+   *
+   * @param host Host name
+   * @param port Port number
+   * @param timeout Connect and read timeout in milliseconds
+   * @throws IOException When handshake failed
+   */
+  public void prime(String host, int port, int timeout) throws IOException
+  {
+    Socket plain = new Socket();
+
+    // tls socket closes plain socket as well, close it here too in case
+    // connect or handshake failed before the tls socket existed
+    try {
+      plain.connect(new InetSocketAddress(host, port), timeout);
+      plain.setSoTimeout(timeout);
+
+      new TimedSocketFactory().createSocket(plain, host, port, true).close();
+    } finally {
+      plain.close();
+    }
+  }
+
+  /**
+   * Get socket factory for https scheme of http client
+   *
+   * @return Socket factory
+   */
+  public LayeredSocketFactory getHttpsSocketFactory()
+  {
+    return new HttpsSocketFactory();
+  }
+
+  /**
+   * Do handshake on new socket, check host name and keep track of the
+   * time it took. Sessions created before the handshake started were
+   * resumed from the cache
+   *
+   * @param socket New socket
+   * @param host Host name
+   * @return Socket
+   * @throws IOException When handshake fails or host name doesn't match
+   */
+  private Socket handshake(Socket socket, String host) throws IOException
+  {
+    SSLSocket ssl = (SSLSocket) socket;
+    long start    = System.currentTimeMillis();
+
+    try {
+      ssl.startHandshake();
+    } catch (IOException e) {
+      ssl.close();
+      throw e;
+    }
+
+    long millis         = System.currentTimeMillis() - start;
+    SSLSession session  = ssl.getSession();
+    boolean resumed     = session.getCreationTime() < start;
+
+    if (!HttpsURLConnection.getDefaultHostnameVerifier().verify(host, session)) {
+      ssl.close();
+      throw new SSLException("Certificate does not match host "+host);
+    }
+
+    synchronized (this) {
+      if (resumed) {
+        resumedCount++;
+        resumedMillis += millis;
+      } else {
+        fullCount++;
+        fullMillis += millis;
+      }
+
+      // time saved by resumed handshakes compared to average full handshake
+      long saved = fullCount == 0 ? 0 : resumedCount * (fullMillis / fullCount) - resumedMillis;
+
+      Log.d("TlsContext", (resumed ? "Resumed" : "Full")+" handshake with "+host+" in "+millis+" ms, "+resumedCount+" of "+(fullCount + resumedCount)+" resumed, about "+saved+" ms saved");
+    }
+
+    return ssl;
+  }
+
+  /**
+   * Socket factory for https connections, handshake is done before the
+   * socket is returned
+   */
+  private class TimedSocketFactory extends SSLSocketFactory
+  {
+    @Override
+    public String[] getDefaultCipherSuites()
+    {
+      return factory.getDefaultCipherSuites();
+    }
+
+    @Override
+    public String[] getSupportedCipherSuites()
+    {
+      return factory.getSupportedCipherSuites();
+    }
+
+    @Override
+    public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException
+    {
+      return handshake(factory.createSocket(socket, host, port, autoClose), host);
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException
+    {
+      return handshake(factory.createSocket(host, port), host);
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException
+    {
+      return handshake(factory.createSocket(host, port, localHost, localPort), host);
+    }
+
+    /**
+     * Not supported, certificate can't be checked without host name
+     */
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException
+    {
+      throw new SSLException("Host name needed to verify "+host.getHostAddress());
+    }
+
+    /**
+     * Not supported, certificate can't be checked without host name
+     */
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException
+    {
+      throw new SSLException("Host name needed to verify "+address.getHostAddress());
+    }
+  }
+
+  /**
+   * Socket factory for https scheme of http client, connects a plain socket
+   * with the timeouts of the client and layers TLS on top of it
+   */
+  private class HttpsSocketFactory implements LayeredSocketFactory
+  {
+    @Override
+    public Socket createSocket() throws IOException
+    {
+      return new Socket();
+    }
+
+    @Override
+    public Socket connectSocket(Socket socket, String host, int port, InetAddress localAddress, int localPort, HttpParams params) throws IOException
+    {
+      Socket plain = socket != null ? socket : createSocket();
+
+      if (localAddress != null || localPort > 0) {
+        plain.bind(new InetSocketAddress(localAddress, localPort < 0 ? 0 : localPort));
+      }
+
+      try {
+        plain.connect(new InetSocketAddress(host, port), HttpConnectionParams.getConnectionTimeout(params));
+      } catch (SocketTimeoutException e) {
+        throw new ConnectTimeoutException("Connect to "+host+" timed out");
+      }
+
+      plain.setSoTimeout(HttpConnectionParams.getSoTimeout(params));
+
+      return createSocket(plain, host, port, true);
+    }
+
+    @Override
+    public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException
+    {
+      return handshake(factory.createSocket(socket, host, port, autoClose), host);
+    }
+
+    @Override
+    public boolean isSecure(Socket socket)
+    {
+      return socket instanceof SSLSocket;
+    }
+  }
+}
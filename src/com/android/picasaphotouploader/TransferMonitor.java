@@ -0,0 +1,215 @@
+/**
+ * This file is part of Picasa Photo Uploader.
+ *
+ * Picasa Photo Uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Picasa Photo Uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Picasa Photo Uploader. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.android.picasaphotouploader;
+
+import android.util.Log;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.methods.HttpRequestBase;
+
+/**
+ * Progress listener that sits between an upload entity and the upload
+ * notification. Progress of the request body is sampled for the bandwidth
+ * estimator, and the request is aborted when no progress was made for
+ * longer than the stall threshold of the estimator
+ */
+public class TransferMonitor implements Multipart.ProgressListener
+{
+  /**
+   * Length of a throughput sample
+   */
+  private static final long SAMPLE_MILLIS = 1000;
+
+  /**
+   * Interval at which transfers are checked for stalls
+   */
+  private static final long CHECK_MILLIS = 1000;
+
+  /**
+   * Thread that checks all running transfers
+   */
+  private static final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor();
+
+  /**
+   * Request that is monitored
+   */
+  private HttpRequestBase request;
+
+  /**
+   * Listener that gets the progress, may be null
+   */
+  private Multipart.ProgressListener delegate;
+
+  /**
+   * Progress at which the body is written, -1 for the total
+   */
+  private long end;
+
+  /**
+   * Time without progress after which request is aborted
+   */
+  private long stallMillis;
+
+  /**
+   * Time of last progress, 0 before the first byte was written
+   */
+  private volatile long lastProgress = 0;
+
+  /**
+   * Set when the whole body was written
+   */
+  private volatile boolean complete = false;
+
+  /**
+   * Set when request was aborted because it stalled
+   */
+  private volatile boolean stalled = false;
+
+  /**
+   * Bytes written at last progress
+   */
+  private long lastWritten = -1;
+
+  /**
+   * Start of the current sample
+   */
+  private long sampleStart;
+
+  /**
+   * Bytes written in the current sample
+   */
+  private long sampleBytes;
+
+  /**
+   * Scheduled stall check
+   */
+  private ScheduledFuture<?> check;
+
+  /**
+   * Constructor
+   *
+   * @param request Request that is monitored
+   * @param delegate Listener that gets the progress, may be null
+   */
+  public TransferMonitor(HttpRequestBase request, Multipart.ProgressListener delegate)
+  {
+    this(request, delegate, -1);
+  }
+
+  /**
+   * Constructor for requests that send only part of the progress total
+   *
+   * @param request Request that is monitored
+   * @param delegate Listener that gets the progress, may be null
+   * @param end Progress at which the body is written, -1 for the total
+   */
+  public TransferMonitor(HttpRequestBase request, Multipart.ProgressListener delegate, long end)
+  {
+    this.request     = request;
+    this.delegate    = delegate;
+    this.end         = end;
+    this.stallMillis = BandwidthEstimator.getInstance().getStallMillis();
+  }
+
+  /**
+   * Start checking request for stalls
+   */
+  public void start()
+  {
+    check = watchdog.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run()
+      {
+        long last = lastProgress;
+
+        if (!complete && last != 0 && System.currentTimeMillis() - last > stallMillis) {
+          Log.w("TransferMonitor", "No progress for "+stallMillis+" ms, aborting "+request.getURI());
+          stalled = true;
+          request.abort();
+          check.cancel(false);
+        }
+      }
+    }, CHECK_MILLIS, CHECK_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stop checking request and add last sample
+   */
+  public void finish()
+  {
+    if (check != null) {
+      check.cancel(false);
+    }
+
+    synchronized (this) {
+      if (sampleBytes > 0) {
+        BandwidthEstimator.getInstance().sample(sampleBytes, System.currentTimeMillis() - sampleStart);
+        sampleBytes = 0;
+      }
+    }
+  }
+
+  /**
+   * Check if request was aborted because it stalled
+   *
+   * @return Stalled or not
+   */
+  public boolean isStalled()
+  {
+    return stalled;
+  }
+
+  /**
+   * Record progress and pass it on
+   *
+   * @param written Bytes written so far
+   * @param total Total bytes to write
+   */
+  @Override
+  public void transferred(long written, long total)
+  {
+    long now = System.currentTimeMillis();
+
+    synchronized (this) {
+      if (lastWritten >= 0) {
+        sampleBytes += written - lastWritten;
+      } else {
+        sampleStart = now;
+      }
+
+      lastWritten = written;
+
+      // add sample to estimator once it is long enough
+      if (now - sampleStart >= SAMPLE_MILLIS) {
+        BandwidthEstimator.getInstance().sample(sampleBytes, now - sampleStart);
+        sampleStart = now;
+        sampleBytes = 0;
+      }
+    }
+
+    lastProgress = now;
+    complete     = written >= (end < 0 ? total : end);
+
+    if (delegate != null) {
+      delegate.transferred(written, total);
+    }
+  }
+}
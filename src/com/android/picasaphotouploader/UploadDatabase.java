@@ -0,0 +1,127 @@
+/**
+ * This file is part of Picasa Photo Uploader.
+ *
+ * Picasa Photo Uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Picasa Photo Uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Picasa Photo Uploader. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.android.picasaphotouploader;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+/**
+ * Database that holds the upload queue so queued images survive a restart
+ * of the application
+ */
+public class UploadDatabase extends SQLiteOpenHelper
+{
+  /**
+   * Name of the database file
+   */
+  private static final String DATABASE_NAME = "uploads.db";
+
+  /**
+   * Version of the database schema
+   */
+  private static final int DATABASE_VERSION = 2;
+
+  /**
+   * Singleton that refers to this class
+   */
+  private static UploadDatabase instance;
+
+  /**
+   * Constructor
+   *
+   * @param context Application context
+   */
+  private UploadDatabase(Context context)
+  {
+    super(context, DATABASE_NAME, null, DATABASE_VERSION);
+  }
+
+  /**
+   * Singleton function, one helper for the whole application so all
+   * threads share one connection
+   *
+   * @param context Application context
+   * @return Instance of this class
+   */
+  public static synchronized UploadDatabase getInstance(Context context)
+  {
+    if (instance == null) {
+      instance = new UploadDatabase(context.getApplicationContext());
+    }
+
+    return instance;
+  }
+
+  /**
+   * Create tables
+   *
+   * @param db Database
+   */
+  @Override
+  public void onCreate(SQLiteDatabase db)
+  {
+    db.execSQL("CREATE TABLE queue ("
+      + "image_id INTEGER PRIMARY KEY, "
+      + "path TEXT NOT NULL, "
+      + "name TEXT, "
+      + "type TEXT, "
+      + "size INTEGER, "
+      + "state INTEGER NOT NULL, "
+      + "attempts INTEGER NOT NULL DEFAULT 0, "
+      + "updated INTEGER NOT NULL)");
+    db.execSQL("CREATE INDEX queue_state ON queue (state, updated)");
+    createDedupTables(db);
+  }
+
+  /**
+   * Upgrade tables
+   *
+   * @param db Database
+   * @param oldVersion Version of the existing database
+   * @param newVersion Version of this schema
+   */
+  @Override
+  public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion)
+  {
+    if (oldVersion < 2) {
+      createDedupTables(db);
+    }
+  }
+
+  /**
+   * Create tables of the dedup index, uploaded contents per album and the
+   * hash of each file we've seen so files are not hashed twice
+   *
+   * @param db Database
+   */
+  private void createDedupTables(SQLiteDatabase db)
+  {
+    db.execSQL("CREATE TABLE uploaded ("
+      + "hash BLOB NOT NULL, "
+      + "album TEXT NOT NULL, "
+      + "size INTEGER NOT NULL, "
+      + "uploaded INTEGER NOT NULL, "
+      + "PRIMARY KEY (hash, album))");
+    db.execSQL("CREATE INDEX uploaded_size ON uploaded (album, size)");
+    db.execSQL("CREATE TABLE files ("
+      + "path TEXT PRIMARY KEY, "
+      + "size INTEGER NOT NULL, "
+      + "modified INTEGER NOT NULL, "
+      + "hash BLOB NOT NULL)");
+  }
+}
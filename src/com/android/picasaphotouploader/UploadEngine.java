@@ -0,0 +1,612 @@
+/**
+ * This file is part of Picasa Photo Uploader.
+ *
+ * Picasa Photo Uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Picasa Photo Uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Picasa Photo Uploader. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.android.picasaphotouploader;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Schedules image uploads on a pool of workers. The number of parallel
+ * uploads is tuned while running: it is raised by one as long as the
+ * aggregate throughput improves and cut in half when uploads start to
+ * fail, limited by the parallel uploads preference. Every state change is
+ * recorded in the upload queue store so unfinished uploads are queued
+ * again when the engine starts
+ */
+public class UploadEngine implements ConnectivityMonitor.Listener
+{
+  /**
+   * Singleton that refers to this class
+   */
+  private static UploadEngine instance;
+
+  /**
+   * Highest number of parallel uploads that can be configured
+   */
+  private static final int MAX_WORKERS = 4;
+
+  /**
+   * Number of finished uploads after which concurrency is reconsidered
+   */
+  private static final int WINDOW = 4;
+
+  /**
+   * Error rate in a window above which concurrency is cut
+   */
+  private static final float MAX_ERROR_RATE = 0.25f;
+
+  /**
+   * Throughput has to improve this much before another worker is added
+   */
+  private static final float MIN_GAIN = 1.1f;
+
+  /**
+   * Application context
+   */
+  private Context context;
+
+  /**
+   * Durable record of the queue
+   */
+  private UploadQueueStore store;
+
+  /**
+   * Workers that run the uploads
+   */
+  private ThreadPoolExecutor workers;
+
+  /**
+   * Uploads waiting for a free worker
+   */
+  private LinkedList<ImageUploader> pending = new LinkedList<ImageUploader>();
+
+  /**
+   * Uploads that are running
+   */
+  private Set<ImageUploader> running = new HashSet<ImageUploader>();
+
+  /**
+   * Set while no allowed network is available, waiting uploads are kept
+   */
+  private boolean paused = false;
+
+  /**
+   * Current number of parallel uploads
+   */
+  private int concurrency = 1;
+
+  /**
+   * Uploads finished in the current window
+   */
+  private int windowFinished = 0;
+
+  /**
+   * Uploads failed in the current window
+   */
+  private int windowFailed = 0;
+
+  /**
+   * Bytes uploaded in the current window
+   */
+  private long windowBytes = 0;
+
+  /**
+   * Time in the current window during which uploads were running
+   */
+  private long windowBusy = 0;
+
+  /**
+   * Time at which the engine became busy, 0 while idle
+   */
+  private long busySince = 0;
+
+  /**
+   * Throughput of the last window in bytes per second
+   */
+  private float lastThroughput = 0;
+
+  /**
+   * Constructor
+   */
+  private UploadEngine() {}
+
+  /**
+   * Singleton function
+   *
+   * @return Instance of this class
+   */
+  public static synchronized UploadEngine getInstance()
+  {
+    if (instance == null) {
+      instance = new UploadEngine();
+    }
+
+    return instance;
+  }
+
+  /**
+   * Block cloning since we use singleton
+   *
+   * @return
+   * @throws CloneNotSupportedException
+   */
+  @Override
+  public Object clone() throws CloneNotSupportedException
+  {
+    throw new CloneNotSupportedException();
+  }
+
+  /**
+   * Start engine if it's not running yet
+   *
+   * @param context Application context
+   */
+  public synchronized void start(Context context)
+  {
+    if (workers != null) {
+      return;
+    }
+
+    this.context = context.getApplicationContext();
+    store        = new UploadQueueStore(this.context);
+    BandwidthLimiter.getInstance().start(this.context);
+    workers      = new ThreadPoolExecutor(MAX_WORKERS, MAX_WORKERS, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+    workers.allowCoreThreadTimeOut(true);
+
+    // pause while there is no network the user allows
+    ConnectivityMonitor.getInstance().addListener(this);
+    paused = !CheckInternet.getInstance().canConnect(this.context, PreferenceManager.getDefaultSharedPreferences(this.context));
+
+    // queue images again that were not uploaded when application stopped
+    final UploadQueueStore replayStore = store;
+
+    new Thread(new Runnable() {
+      @Override
+      public void run()
+      {
+        List<ImageItem> items = replayStore.loadUnfinished();
+
+        if (!items.isEmpty()) {
+          Log.i("UploadEngine", "Replaying "+items.size()+" unfinished uploads");
+          replay(items);
+        }
+      }
+    }, "UploadQueueReplay").start();
+  }
+
+  /**
+   * Stop engine, abort running uploads and drop waiting uploads
+   */
+  public synchronized void shutdown()
+  {
+    if (workers == null) {
+      return;
+    }
+
+    for (ImageUploader uploader : running) {
+      uploader.cancel();
+    }
+
+    ConnectivityMonitor.getInstance().removeListener(this);
+    RetryScheduler.getInstance().cancelAll();
+    workers.shutdownNow();
+    workers   = null;
+    busySince = 0;
+    pending.clear();
+    running.clear();
+    notifyAll();
+
+    // running uploads stay recorded as in flight and are queued again
+    // on next start, make sure all changes are on disk before we exit
+    store.close(2000);
+    store = null;
+  }
+
+  /**
+   * Pause or resume uploads and apply policy of the new network
+   *
+   * @param context Application context
+   */
+  @Override
+  public void connectivityChanged(Context context)
+  {
+    // bandwidth cap of the new network applies to running uploads too
+    BandwidthLimiter.getInstance().update();
+
+    if (CheckInternet.getInstance().canConnect(context, PreferenceManager.getDefaultSharedPreferences(context))) {
+      resume();
+      reconfigure();
+    } else {
+      pause();
+    }
+  }
+
+  /**
+   * Stop starting uploads, running uploads are aborted and queued again
+   */
+  public synchronized void pause()
+  {
+    if (workers == null || paused) {
+      return;
+    }
+
+    paused = true;
+
+    for (ImageUploader uploader : running) {
+      uploader.cancel();
+    }
+
+    Log.i("UploadEngine", "Paused with "+pending.size()+" waiting and "+running.size()+" running uploads");
+  }
+
+  /**
+   * Start waiting uploads again with all workers the user allows
+   */
+  public synchronized void resume()
+  {
+    if (workers == null || !paused) {
+      return;
+    }
+
+    paused      = false;
+    concurrency = getMaxWorkers();
+
+    Log.i("UploadEngine", "Resumed with "+pending.size()+" waiting uploads");
+
+    dispatch();
+  }
+
+  /**
+   * Apply parallelism of the current network policy
+   */
+  private synchronized void reconfigure()
+  {
+    if (workers != null) {
+      dispatch();
+    }
+  }
+
+  /**
+   * Add image to the upload queue
+   *
+   * @param item Image queue item
+   * @param committed Run once the image is recorded on disk, may be null
+   * @return True if image was queued, false if engine is stopped
+   */
+  public synchronized boolean submit(ImageItem item, Runnable committed)
+  {
+    if (workers == null) {
+      return false;
+    }
+
+    store.enqueue(item, committed);
+    pending.add(new ImageUploader(context, item));
+    dispatch();
+
+    return true;
+  }
+
+  /**
+   * Put image back in the queue after a failed attempt
+   *
+   * @param item Image queue item
+   */
+  public synchronized void retry(ImageItem item)
+  {
+    if (workers == null) {
+      return;
+    }
+
+    pending.add(new ImageUploader(context, item));
+    dispatch();
+  }
+
+  /**
+   * Queue images that were recorded in the store before. Images submitted
+   * while the store was read may be recorded already, they are skipped so
+   * no image is uploaded twice
+   *
+   * @param items Image queue items
+   */
+  private synchronized void replay(List<ImageItem> items)
+  {
+    if (workers == null) {
+      return;
+    }
+
+    for (ImageItem item : items) {
+      if (!isQueued(item.imageId)) {
+        pending.add(new ImageUploader(context, item));
+      }
+    }
+
+    dispatch();
+  }
+
+  /**
+   * Check if an image is waiting or running
+   *
+   * @param imageId Image id
+   * @return If image is in the queue
+   */
+  private boolean isQueued(int imageId)
+  {
+    for (ImageUploader uploader : pending) {
+      if (uploader.getItem().imageId == imageId) {
+        return true;
+      }
+    }
+
+    for (ImageUploader uploader : running) {
+      if (uploader.getItem().imageId == imageId) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * Get recorded upload state of an image
+   *
+   * @param imageId Image id
+   * @return State from UploadQueueStore or -1 if image is not recorded
+   */
+  public int getState(int imageId)
+  {
+    UploadQueueStore store;
+
+    synchronized (this) {
+      store = this.store;
+    }
+
+    return store == null ? -1 : store.getState(imageId);
+  }
+
+  /**
+   * Get number of uploads waiting for a worker
+   *
+   * @return Queue depth
+   */
+  public synchronized int getQueueDepth()
+  {
+    return pending.size();
+  }
+
+  /**
+   * Wait until fewer uploads are waiting for a worker
+   *
+   * @param max Number of waiting uploads to stay below
+   * @throws InterruptedException When waiting thread is interrupted
+   */
+  public synchronized void awaitQueueDepth(int max) throws InterruptedException
+  {
+    while (pending.size() >= max) {
+      wait();
+    }
+  }
+
+  /**
+   * Get number of uploads that are running
+   *
+   * @return In flight uploads
+   */
+  public synchronized int getInFlight()
+  {
+    return running.size();
+  }
+
+  /**
+   * Get current number of parallel uploads
+   *
+   * @return Concurrency
+   */
+  public synchronized int getConcurrency()
+  {
+    return concurrency;
+  }
+
+  /**
+   * Start waiting uploads as long as there are free workers, threads that
+   * wait for room in the queue are woken up
+   */
+  private void dispatch()
+  {
+    concurrency = Math.min(concurrency, getMaxWorkers());
+    notifyAll();
+
+    while (workers != null && !paused && running.size() < concurrency && !pending.isEmpty()) {
+      final ImageUploader uploader = pending.removeFirst();
+      running.add(uploader);
+      store.setState(uploader.getItem(), UploadQueueStore.STATE_IN_FLIGHT);
+
+      // network may have changed since last upload
+      if (running.size() == 1) {
+        BandwidthLimiter.getInstance().update();
+      }
+
+      if (busySince == 0) {
+        busySince = System.currentTimeMillis();
+      }
+
+      workers.execute(new Runnable() {
+        @Override
+        public void run()
+        {
+          Exception error = null;
+          boolean sent    = false;
+
+          try {
+            sent = uploader.upload();
+          } catch (Exception e) {
+            Log.w("UploadEngine", "Upload of "+uploader.getItem().imageName+" failed: "+e.getMessage());
+            error = e;
+          } finally {
+            finished(uploader, error, sent);
+          }
+        }
+      });
+    }
+  }
+
+  /**
+   * Handle finished upload, schedule retry of failed upload if allowed and
+   * start next
+   *
+   * @param uploader Upload that finished
+   * @param error Exception of failed upload, null if upload succeeded
+   * @param sent If image was sent, false when it was skipped or failed
+   */
+  private synchronized void finished(ImageUploader uploader, Exception error, boolean sent)
+  {
+    // engine was shut down while upload was running
+    if (!running.remove(uploader)) {
+      return;
+    }
+
+    ImageItem item = uploader.getItem();
+
+    // network went away, keep image at front of the queue without counting
+    // the attempt and wait until network comes back
+    SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+
+    if (error != null && (paused || !CheckInternet.getInstance().canConnect(context, prefs))) {
+      uploader.failed(true);
+      store.setState(item, UploadQueueStore.STATE_PENDING);
+      pending.addFirst(new ImageUploader(context, item));
+      pause();
+      stopBusy();
+      return;
+    }
+
+    // skipped image sent nothing, it would inflate the throughput of the
+    // window and make concurrency grow
+    if (error == null && !sent) {
+      store.setState(item, UploadQueueStore.STATE_DONE);
+      dispatch();
+      stopBusy();
+      return;
+    }
+
+    if (error == null) {
+      windowBytes += item.imageSize;
+      store.setState(item, UploadQueueStore.STATE_DONE);
+    } else {
+      windowFailed++;
+
+      // get number of retries for failed upload
+      int maxRetries = Integer.valueOf(prefs.getString("retries", "_0").substring(1));
+
+      // check if we still have any tries left to try upload again after a delay
+      if (item.attempts < maxRetries) {
+        item.attempts++;
+        uploader.failed(true);
+        store.setState(item, UploadQueueStore.STATE_PENDING);
+        RetryScheduler.getInstance().schedule(item, error, this);
+      } else {
+        uploader.failed(false);
+        store.setState(item, UploadQueueStore.STATE_FAILED);
+      }
+    }
+
+    if (++windowFinished >= WINDOW) {
+      adjustConcurrency();
+    }
+
+    dispatch();
+    stopBusy();
+  }
+
+  /**
+   * Stop measuring busy time while nothing is running
+   */
+  private void stopBusy()
+  {
+    if (running.isEmpty() && busySince != 0) {
+      windowBusy += System.currentTimeMillis() - busySince;
+      busySince   = 0;
+    }
+  }
+
+  /**
+   * Check if the running uploads already use the whole bandwidth cap at
+   * the estimated throughput, another upload would only share it
+   *
+   * @return Saturated or not
+   */
+  private boolean isSaturated()
+  {
+    long cap = BandwidthLimiter.getInstance().getRate();
+
+    return cap > 0 && BandwidthEstimator.getInstance().getBytesPerSecond() * concurrency >= cap;
+  }
+
+  /**
+   * Additive increase, multiplicative decrease of the number of parallel
+   * uploads based on throughput and error rate of the last window
+   */
+  private void adjustConcurrency()
+  {
+    long now         = System.currentTimeMillis();
+    long elapsed     = Math.max(1, windowBusy + (busySince != 0 ? now - busySince : 0));
+    float throughput = windowBytes * 1000f / elapsed;
+    float errorRate  = (float)windowFailed / windowFinished;
+    int previous     = concurrency;
+
+    if (errorRate > MAX_ERROR_RATE) {
+      concurrency = Math.max(1, concurrency / 2);
+    } else if (throughput >= lastThroughput * MIN_GAIN && !isSaturated()) {
+      concurrency = Math.min(getMaxWorkers(), concurrency + 1);
+    } else if (throughput < lastThroughput / MIN_GAIN) {
+      concurrency = Math.max(1, concurrency - 1);
+    }
+
+    if (concurrency != previous) {
+      Log.i("UploadEngine", "Concurrency "+previous+" -> "+concurrency+" at "+Math.round(throughput / 1024)+" KB/s, error rate "+errorRate);
+    }
+
+    // start new window
+    lastThroughput = throughput;
+    windowFinished = 0;
+    windowFailed   = 0;
+    windowBytes    = 0;
+    windowBusy     = 0;
+    busySince      = busySince != 0 ? now : 0;
+  }
+
+  /**
+   * Get maximum number of parallel uploads from policy of current network
+   *
+   * @return Maximum parallel uploads
+   */
+  private int getMaxWorkers()
+  {
+    SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+
+    return Math.max(1, Math.min(MAX_WORKERS, NetworkPolicy.current(prefs).getParallelUploads()));
+  }
+}
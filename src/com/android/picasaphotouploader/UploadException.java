@@ -0,0 +1,105 @@
+/**
+ * This file is part of Picasa Photo Uploader.
+ *
+ * Picasa Photo Uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Picasa Photo Uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Picasa Photo Uploader. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.android.picasaphotouploader;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+
+/**
+ * Exception for an upload the server rejected, holds the status code and
+ * the delay the server asked for before trying again
+ */
+public class UploadException extends IOException
+{
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * Http status code returned by the server
+   */
+  private int statusCode;
+
+  /**
+   * Delay in milliseconds from Retry-After header, -1 if not set
+   */
+  private long retryAfter;
+
+  /**
+   * Constructor
+   *
+   * @param message Description of the failure
+   * @param response Response of the server
+   */
+  public UploadException(String message, HttpResponse response)
+  {
+    super(message+", status "+response.getStatusLine().getStatusCode());
+
+    this.statusCode = response.getStatusLine().getStatusCode();
+    this.retryAfter = parseRetryAfter(response.getFirstHeader("Retry-After"));
+  }
+
+  /**
+   * Get http status code returned by the server
+   *
+   * @return Status code
+   */
+  public int getStatusCode()
+  {
+    return statusCode;
+  }
+
+  /**
+   * Get delay the server asked for, only for 429 and 503 responses
+   *
+   * @return Delay in milliseconds or -1 if server didn't ask for a delay
+   */
+  public long getRetryAfter()
+  {
+    return statusCode == 429 || statusCode == 503 ? retryAfter : -1;
+  }
+
+  /**
+   * Parse Retry-After header, it's either a number of seconds or a date
+   *
+   * @param header Retry-After header, may be null
+   * @return Delay in milliseconds or -1 if header is missing or invalid
+   */
+  private static long parseRetryAfter(Header header)
+  {
+    if (header == null) {
+      return -1;
+    }
+
+    String value = header.getValue().trim();
+
+    try {
+      return Math.max(0, Long.parseLong(value) * 1000);
+    } catch (NumberFormatException e) {
+    }
+
+    try {
+      Date date = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US).parse(value);
+      return Math.max(0, date.getTime() - System.currentTimeMillis());
+    } catch (Exception e) {
+      return -1;
+    }
+  }
+}
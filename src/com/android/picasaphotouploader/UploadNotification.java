@@ -30,7 +30,7 @@ import android.widget.RemoteViews;
  *
  * @author Jan Peter Hooiveld
  */
-public class UploadNotification extends Notification
+public class UploadNotification extends Notification implements Multipart.ProgressListener
 {
   /**
    * Unique notificaion id
@@ -47,6 +47,11 @@ public class UploadNotification extends Notification
    */
   private int progress = 0;
 
+  /**
+   * Next percentage at which notification is updated
+   */
+  private int increment = 10;
+
   /**
    * Name of file being uploaded
    */
@@ -98,14 +103,16 @@ public class UploadNotification extends Notification
   }
 
   /**
-   * Update status notificaion with the new progress
+   * Update status notificaion with the new progress, the next update step
+   * follows the progress so it also works when progress went back
    *
-   * @param progress Progress of file upload
+   * @param progress Number of file bytes uploaded so far
    */
-  public void update(int progress)
+  public void update(long progress)
   {
-    // update file upload progress
-    this.progress += progress;
+    // update file upload progress and next percentage to update at
+    this.progress  = (int)Math.min(progress, max);
+    this.increment = max > 0 ? ((int)((long)this.progress * 100 / max) / 10 + 1) * 10 : 10;
 
     try {
       // set fields in the custom view
@@ -119,6 +126,30 @@ public class UploadNotification extends Notification
     }
   }
 
+  /**
+   * Update status notification in steps of 10 percent while file is being
+   * written, updating for every block would flood the notification manager
+   *
+   * @param written Total number of file bytes written so far
+   * @param total Total number of file bytes
+   */
+  @Override
+  public void transferred(long written, long total)
+  {
+    if (total <= 0) {
+      return;
+    }
+
+    int percent = (int)(written * 100 / total);
+
+    // if percent exceeds increment update status notification, body is
+    // written again from the start when a request is retried so progress
+    // that went back is shown as well
+    if (percent >= increment || percent < increment - 10) {
+      update(written);
+    }
+  }
+
   /**
    * Update status notification that file upload has finished
    */
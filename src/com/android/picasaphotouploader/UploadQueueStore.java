@@ -0,0 +1,370 @@
+/**
+ * This file is part of Picasa Photo Uploader.
+ *
+ * Picasa Photo Uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Picasa Photo Uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Picasa Photo Uploader. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.android.picasaphotouploader;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Durable record of the upload queue. State changes are written by a
+ * single background thread that commits all waiting changes in one
+ * transaction, so a burst of new images costs one disk sync instead of
+ * one per image and callers never wait for the disk
+ */
+public class UploadQueueStore
+{
+  /**
+   * Image is waiting to be uploaded
+   */
+  public static final int STATE_PENDING = 0;
+
+  /**
+   * Image is being uploaded
+   */
+  public static final int STATE_IN_FLIGHT = 1;
+
+  /**
+   * Image was uploaded
+   */
+  public static final int STATE_DONE = 2;
+
+  /**
+   * Upload failed and won't be retried
+   */
+  public static final int STATE_FAILED = 3;
+
+  /**
+   * Finished records are removed after this time
+   */
+  private static final long KEEP_DONE_MILLIS = 24 * 60 * 60 * 1000L;
+
+  /**
+   * Failed records are removed after this time
+   */
+  private static final long KEEP_FAILED_MILLIS = 7 * 24 * 60 * 60 * 1000L;
+
+  /**
+   * Number of writes after which finished records are removed
+   */
+  private static final int COMPACT_INTERVAL = 200;
+
+  /**
+   * Application context
+   */
+  private Context context;
+
+  /**
+   * Database helper
+   */
+  private UploadDatabase database;
+
+  /**
+   * Changes waiting to be written
+   */
+  private LinkedBlockingQueue<Change> writes = new LinkedBlockingQueue<Change>();
+
+  /**
+   * Thread that writes the changes
+   */
+  private Thread writer;
+
+  /**
+   * Number of writes since last compaction
+   */
+  private int sinceCompact = 0;
+
+  /**
+   * Marker that stops the writer thread
+   */
+  private static final Change STOP = new Change(null, 0);
+
+  /**
+   * Change of the state of an image
+   */
+  private static class Change
+  {
+    /**
+     * Image queue item
+     */
+    private ImageItem item;
+
+    /**
+     * New state of the image
+     */
+    private int state;
+
+    /**
+     * Number of failed attempts at time of change
+     */
+    private int attempts;
+
+    /**
+     * If a complete record has to be written
+     */
+    private boolean insert;
+
+    /**
+     * Run after the change was committed, may be null
+     */
+    private Runnable committed;
+
+    /**
+     * Constructor
+     *
+     * @param item Image queue item
+     * @param state New state of the image
+     */
+    public Change(ImageItem item, int state)
+    {
+      this.item     = item;
+      this.state    = state;
+      this.attempts = item != null ? item.attempts : 0;
+    }
+  }
+
+  /**
+   * Constructor
+   *
+   * @param context Application context
+   */
+  public UploadQueueStore(Context context)
+  {
+    this.context  = context.getApplicationContext();
+    this.database = UploadDatabase.getInstance(context);
+
+    writer = new Thread(new Runnable() {
+      @Override
+      public void run()
+      {
+        write();
+      }
+    }, "UploadQueueStore");
+    writer.start();
+  }
+
+  /**
+   * Record new image as pending
+   *
+   * @param item Image queue item
+   * @param committed Run on the writer thread once the record is on disk, may be null
+   */
+  public void enqueue(ImageItem item, Runnable committed)
+  {
+    Change change    = new Change(item, STATE_PENDING);
+    change.insert    = true;
+    change.committed = committed;
+    writes.add(change);
+  }
+
+  /**
+   * Record new state of an image
+   *
+   * @param item Image queue item
+   * @param state New state
+   */
+  public void setState(ImageItem item, int state)
+  {
+    writes.add(new Change(item, state));
+  }
+
+  /**
+   * Load images that were pending or being uploaded when the application
+   * stopped, in the order they were queued
+   *
+   * @return Image queue items
+   */
+  public List<ImageItem> loadUnfinished()
+  {
+    List<ImageItem> items   = new ArrayList<ImageItem>();
+    SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+    Cursor cursor           = database.getReadableDatabase().rawQuery("SELECT image_id, path, name, type, size, attempts FROM queue WHERE state IN ("+STATE_PENDING+", "+STATE_IN_FLIGHT+") ORDER BY image_id", null);
+
+    try {
+      while (cursor.moveToNext()) {
+        ImageItem item = new ImageItem();
+        item.prefs     = prefs;
+        item.imageId   = cursor.getInt(0);
+        item.imagePath = cursor.getString(1);
+        item.imageName = cursor.getString(2);
+        item.imageType = cursor.getString(3);
+        item.imageSize = cursor.getInt(4);
+        item.attempts  = cursor.getInt(5);
+        items.add(item);
+      }
+    } finally {
+      cursor.close();
+    }
+
+    return items;
+  }
+
+  /**
+   * Get recorded state of an image
+   *
+   * @param imageId Image id
+   * @return State of the image or -1 if it is not recorded
+   */
+  public int getState(int imageId)
+  {
+    Cursor cursor = database.getReadableDatabase().rawQuery("SELECT state FROM queue WHERE image_id = ?", new String[]{ Integer.toString(imageId) });
+
+    try {
+      return cursor.moveToFirst() ? cursor.getInt(0) : -1;
+    } finally {
+      cursor.close();
+    }
+  }
+
+  /**
+   * Write all waiting changes and stop writer thread
+   *
+   * @param timeout Maximum time to wait in milliseconds
+   */
+  public void close(long timeout)
+  {
+    writes.add(STOP);
+
+    try {
+      writer.join(timeout);
+    } catch (InterruptedException e) {
+    }
+  }
+
+  /**
+   * Writer thread, takes all waiting changes and commits them at once
+   */
+  private void write()
+  {
+    List<Change> batch     = new ArrayList<Change>();
+    SQLiteDatabase db      = database.getWritableDatabase();
+    SQLiteStatement insert = db.compileStatement("INSERT OR REPLACE INTO queue (image_id, path, name, type, size, state, attempts, updated) VALUES (?, ?, ?, ?, ?, ?, ?, ?)");
+    SQLiteStatement update = db.compileStatement("UPDATE queue SET state = ?, attempts = ?, updated = ? WHERE image_id = ?");
+    boolean running        = true;
+
+    compact(db);
+
+    while (running) {
+      try {
+        batch.add(writes.take());
+        writes.drainTo(batch);
+      } catch (InterruptedException e) {
+        running = false;
+      }
+
+      long now        = System.currentTimeMillis();
+      boolean written = false;
+
+      db.beginTransaction();
+
+      try {
+        for (Change change : batch) {
+          if (change == STOP) {
+            running = false;
+          } else if (change.insert) {
+            insert.bindLong(1, change.item.imageId);
+            insert.bindString(2, change.item.imagePath);
+            bindString(insert, 3, change.item.imageName);
+            bindString(insert, 4, change.item.imageType);
+            insert.bindLong(5, change.item.imageSize);
+            insert.bindLong(6, change.state);
+            insert.bindLong(7, change.attempts);
+            insert.bindLong(8, now);
+            insert.execute();
+          } else {
+            update.bindLong(1, change.state);
+            update.bindLong(2, change.attempts);
+            update.bindLong(3, now);
+            update.bindLong(4, change.item.imageId);
+            update.execute();
+          }
+        }
+
+        db.setTransactionSuccessful();
+        written = true;
+      } catch (Exception e) {
+        Log.e("UploadQueueStore", "Could not write upload queue", e);
+      } finally {
+        db.endTransaction();
+      }
+
+      // tell callers their records are on disk, not when the transaction
+      // failed so nothing relies on a record that was not written
+      if (written) {
+        for (Change change : batch) {
+          if (change.committed != null) {
+            change.committed.run();
+          }
+        }
+      }
+
+      sinceCompact += batch.size();
+      batch.clear();
+
+      // remove finished records once in a while, never while a burst is waiting
+      if (sinceCompact >= COMPACT_INTERVAL && writes.isEmpty()) {
+        compact(db);
+      }
+    }
+
+    insert.close();
+    update.close();
+  }
+
+  /**
+   * Remove old finished and failed records
+   *
+   * @param db Database
+   */
+  private void compact(SQLiteDatabase db)
+  {
+    long now = System.currentTimeMillis();
+
+    try {
+      db.delete("queue", "state = ? AND updated < ?", new String[]{ String.valueOf(STATE_DONE), String.valueOf(now - KEEP_DONE_MILLIS) });
+      db.delete("queue", "state = ? AND updated < ?", new String[]{ String.valueOf(STATE_FAILED), String.valueOf(now - KEEP_FAILED_MILLIS) });
+    } catch (Exception e) {
+      Log.e("UploadQueueStore", "Could not compact upload queue", e);
+    }
+
+    sinceCompact = 0;
+  }
+
+  /**
+   * Bind string that may be null
+   *
+   * @param statement Statement to bind to
+   * @param index Index of the parameter
+   * @param value Value to bind
+   */
+  private static void bindString(SQLiteStatement statement, int index, String value)
+  {
+    if (value == null) {
+      statement.bindNull(index);
+    } else {
+      statement.bindString(index, value);
+    }
+  }
+}
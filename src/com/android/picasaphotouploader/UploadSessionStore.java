@@ -0,0 +1,137 @@
+/**
+ * This file is part of Picasa Photo Uploader.
+ *
+ * Picasa Photo Uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Picasa Photo Uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Picasa Photo Uploader. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.android.picasaphotouploader;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.io.File;
+
+/**
+ * Stores resumable upload sessions on disk so an interrupted upload can
+ * continue from the last byte the server confirmed, also after the
+ * application was restarted. The offset is asked from the server first,
+ * the stored offset is used when the server can't be asked
+ */
+public class UploadSessionStore
+{
+  /**
+   * Name of the preferences file that holds the sessions
+   */
+  private static final String PREFS_NAME = "upload_sessions";
+
+  /**
+   * Preferences that hold the sessions
+   */
+  private SharedPreferences sessions;
+
+  /**
+   * Constructor
+   *
+   * @param context Application context
+   */
+  public UploadSessionStore(Context context)
+  {
+    sessions = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+  }
+
+  /**
+   * Get session url for an image, only if the session was created for the
+   * same file with the same length
+   *
+   * @param item Image queue item
+   * @param file File that is uploaded
+   * @return Session url or null if there is no usable session
+   */
+  public String getUrl(ImageItem item, File file)
+  {
+    String url = sessions.getString(key(item, "url"), null);
+
+    if (url == null || sessions.getLong(key(item, "length"), -1) != file.length() || !file.getAbsolutePath().equals(sessions.getString(key(item, "path"), ""))) {
+      return null;
+    }
+
+    return url;
+  }
+
+  /**
+   * Get the last offset confirmed by the server, used when the server
+   * can't be asked for the offset
+   *
+   * @param item Image queue item
+   * @return Confirmed offset, 0 if nothing was confirmed
+   */
+  public long getOffset(ImageItem item)
+  {
+    return sessions.getLong(key(item, "offset"), 0);
+  }
+
+  /**
+   * Store a new session for an image
+   *
+   * @param item Image queue item
+   * @param url Session url returned by the server
+   * @param file File that is uploaded
+   */
+  public void start(ImageItem item, String url, File file)
+  {
+    sessions.edit()
+      .putString(key(item, "url"), url)
+      .putString(key(item, "path"), file.getAbsolutePath())
+      .putLong(key(item, "length"), file.length())
+      .putLong(key(item, "offset"), 0)
+      .commit();
+  }
+
+  /**
+   * Store offset confirmed by the server
+   *
+   * @param item Image queue item
+   * @param offset Confirmed offset
+   */
+  public void setOffset(ImageItem item, long offset)
+  {
+    sessions.edit().putLong(key(item, "offset"), offset).commit();
+  }
+
+  /**
+   * Remove session of an image after upload finished or session expired
+   *
+   * @param item Image queue item
+   */
+  public void remove(ImageItem item)
+  {
+    sessions.edit()
+      .remove(key(item, "url"))
+      .remove(key(item, "path"))
+      .remove(key(item, "length"))
+      .remove(key(item, "offset"))
+      .commit();
+  }
+
+  /**
+   * Create preference key for an image
+   *
+   * @param item Image queue item
+   * @param field Field name
+   * @return Preference key
+   */
+  private String key(ImageItem item, String field)
+  {
+    return item.imageId+"."+field;
+  }
+}
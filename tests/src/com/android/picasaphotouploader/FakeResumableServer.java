@@ -0,0 +1,361 @@
+/**
+ * This file is part of Picasa Photo Uploader.
+ *
+ * Picasa Photo Uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Picasa Photo Uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Picasa Photo Uploader. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.android.picasaphotouploader;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Local stand-in for the server of the resumable upload protocol. A POST
+ * creates a session, chunks and status queries are answered with 308 and
+ * a Range header of the received bytes like the real server does. The
+ * connection can be dropped in the middle of a chunk to test resuming
+ */
+public class FakeResumableServer implements Runnable
+{
+  /**
+   * Status code the server returns when more data is expected
+   */
+  private static final int RESUME_INCOMPLETE = 308;
+
+  /**
+   * Socket that accepts connections
+   */
+  private ServerSocket socket;
+
+  /**
+   * Thread that handles connections
+   */
+  private Thread thread;
+
+  /**
+   * Bytes received in the current session
+   */
+  private ByteArrayOutputStream received = new ByteArrayOutputStream();
+
+  /**
+   * Length of the file of the current session
+   */
+  private long total = -1;
+
+  /**
+   * Number of sessions created
+   */
+  private int sessions = 0;
+
+  /**
+   * Offset at which the connection is dropped once, -1 to never drop
+   */
+  private long dropAt = -1;
+
+  /**
+   * If status queries are dropped without an answer
+   */
+  private boolean dropQueries = false;
+
+  /**
+   * Start listening on a free local port
+   *
+   * @throws IOException
+   */
+  public void start() throws IOException
+  {
+    socket = new ServerSocket(0, 5, InetAddress.getByName("127.0.0.1"));
+    thread = new Thread(this, "FakeResumableServer");
+    thread.start();
+  }
+
+  /**
+   * Stop listening
+   */
+  public void stop()
+  {
+    try {
+      socket.close();
+      thread.join(2000);
+    } catch (Exception e) {
+    }
+  }
+
+  /**
+   * Get feed url to create sessions in, up to the user name
+   *
+   * @return Feed url
+   */
+  public String getUploadUrl()
+  {
+    return "http://127.0.0.1:"+socket.getLocalPort()+"/upload/";
+  }
+
+  /**
+   * Drop connection once when the session received this many bytes
+   *
+   * @param offset Offset to drop the connection at
+   */
+  public synchronized void dropAt(long offset)
+  {
+    dropAt = offset;
+  }
+
+  /**
+   * Drop status queries without an answer, as if the network failed
+   *
+   * @param drop Drop queries or not
+   */
+  public synchronized void dropStatusQueries(boolean drop)
+  {
+    dropQueries = drop;
+  }
+
+  /**
+   * Get bytes received in the current session
+   *
+   * @return Received bytes
+   */
+  public synchronized byte[] getReceived()
+  {
+    return received.toByteArray();
+  }
+
+  /**
+   * Get number of sessions created
+   *
+   * @return Number of sessions
+   */
+  public synchronized int getSessions()
+  {
+    return sessions;
+  }
+
+  /**
+   * Accept connections until the server is stopped, every connection is
+   * closed after one request
+   */
+  @Override
+  public void run()
+  {
+    while (!socket.isClosed()) {
+      Socket client;
+
+      try {
+        client = socket.accept();
+      } catch (IOException e) {
+        return;
+      }
+
+      try {
+        handle(client);
+      } catch (IOException e) {
+      } finally {
+        try {
+          client.close();
+        } catch (IOException e) {
+        }
+      }
+    }
+  }
+
+  /**
+   * Answer one request
+   *
+   * @param client Connection of the client
+   * @throws IOException
+   */
+  private void handle(Socket client) throws IOException
+  {
+    InputStream in              = new BufferedInputStream(client.getInputStream());
+    OutputStream out            = client.getOutputStream();
+    String request              = readLine(in);
+    Map<String, String> headers = new HashMap<String, String>();
+
+    if (request == null) {
+      return;
+    }
+
+    for (String line = readLine(in); line != null && line.length() > 0; line = readLine(in)) {
+      int colon = line.indexOf(':');
+      headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+    }
+
+    long length  = headers.containsKey("content-length") ? Long.parseLong(headers.get("content-length")) : 0;
+    String range = headers.get("content-range");
+
+    // new session, metadata in the body is not checked
+    if (request.startsWith("POST ")) {
+      skip(in, length);
+
+      synchronized (this) {
+        sessions++;
+        total = Long.parseLong(headers.get("x-upload-content-length"));
+        received.reset();
+      }
+
+      respond(out, 201, "Location: http://127.0.0.1:"+socket.getLocalPort()+"/session/"+sessions);
+      return;
+    }
+
+    // status query, bytes */length
+    if (range.startsWith("bytes */")) {
+      synchronized (this) {
+        if (dropQueries) {
+          return;
+        }
+      }
+
+      respondStatus(out);
+      return;
+    }
+
+    // chunk, bytes first-last/length. A chunk may start before the end of
+    // the received bytes, the rest is replaced
+    long first = Long.parseLong(range.substring(6, range.indexOf('-')));
+
+    synchronized (this) {
+      if (first > received.size()) {
+        respond(out, 416, null);
+        return;
+      }
+
+      byte[] kept = received.toByteArray();
+      received.reset();
+      received.write(kept, 0, (int)first);
+    }
+
+    byte[] buffer  = new byte[8192];
+    long remaining = length;
+
+    while (remaining > 0) {
+      int l = in.read(buffer, 0, (int)Math.min(buffer.length, remaining));
+
+      if (l == -1) {
+        return;
+      }
+
+      synchronized (this) {
+        // keep bytes up to the drop offset and hang up
+        if (dropAt >= 0 && received.size() + l >= dropAt) {
+          received.write(buffer, 0, (int)(dropAt - received.size()));
+          dropAt = -1;
+          return;
+        }
+
+        received.write(buffer, 0, l);
+      }
+
+      remaining -= l;
+    }
+
+    respondStatus(out);
+  }
+
+  /**
+   * Answer with the state of the session, 201 when the file is complete
+   * and 308 otherwise. The Range header is left out when nothing was
+   * received, like the real server does
+   *
+   * @param out Output stream of the connection
+   * @throws IOException
+   */
+  private void respondStatus(OutputStream out) throws IOException
+  {
+    int size;
+    boolean complete;
+
+    synchronized (this) {
+      size     = received.size();
+      complete = size == total;
+    }
+
+    if (complete) {
+      respond(out, 201, null);
+    } else {
+      respond(out, RESUME_INCOMPLETE, size > 0 ? "Range: bytes=0-"+(size - 1) : null);
+    }
+  }
+
+  /**
+   * Write response without body
+   *
+   * @param out Output stream of the connection
+   * @param status Status code
+   * @param header Extra header or null
+   * @throws IOException
+   */
+  private void respond(OutputStream out, int status, String header) throws IOException
+  {
+    StringBuilder response = new StringBuilder("HTTP/1.1 "+status+" Status\r\n");
+
+    if (header != null) {
+      response.append(header).append("\r\n");
+    }
+
+    response.append("Content-Length: 0\r\nConnection: close\r\n\r\n");
+    out.write(response.toString().getBytes("US-ASCII"));
+    out.flush();
+  }
+
+  /**
+   * Read line of request head without line break
+   *
+   * @param in Input stream of the connection
+   * @return Line or null at end of stream
+   * @throws IOException
+   */
+  private String readLine(InputStream in) throws IOException
+  {
+    StringBuilder line = new StringBuilder();
+    int c;
+
+    while ((c = in.read()) != -1 && c != '\n') {
+      if (c != '\r') {
+        line.append((char)c);
+      }
+    }
+
+    return c == -1 && line.length() == 0 ? null : line.toString();
+  }
+
+  /**
+   * Read and ignore bytes of a body
+   *
+   * @param in Input stream of the connection
+   * @param length Number of bytes
+   * @throws IOException
+   */
+  private void skip(InputStream in, long length) throws IOException
+  {
+    byte[] buffer = new byte[8192];
+
+    while (length > 0) {
+      int l = in.read(buffer, 0, (int)Math.min(buffer.length, length));
+
+      if (l == -1) {
+        return;
+      }
+
+      length -= l;
+    }
+  }
+}
@@ -0,0 +1,186 @@
+/**
+ * This file is part of Picasa Photo Uploader.
+ *
+ * Picasa Photo Uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Picasa Photo Uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Picasa Photo Uploader. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.android.picasaphotouploader;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
+
+import android.preference.PreferenceManager;
+import android.test.AndroidTestCase;
+
+/**
+ * Run the resumable upload protocol against a local server that drops
+ * connections, checks that uploads continue in the same session
+ */
+public class ResumableUploaderTest extends AndroidTestCase
+{
+  /**
+   * Length of test file, spans more than one chunk
+   */
+  private static final int LENGTH = 600 * 1024;
+
+  /**
+   * Offset at which the server drops the connection
+   */
+  private static final int DROP_AT = 300 * 1024;
+
+  /**
+   * Local server
+   */
+  private FakeResumableServer server;
+
+  /**
+   * Session store of uploader
+   */
+  private UploadSessionStore store;
+
+  /**
+   * Item to upload
+   */
+  private ImageItem item;
+
+  /**
+   * File to upload
+   */
+  private File file;
+
+  /**
+   * Content of file
+   */
+  private byte[] content;
+
+  @Override
+  protected void setUp() throws Exception
+  {
+    super.setUp();
+
+    server = new FakeResumableServer();
+    server.start();
+
+    content = new byte[LENGTH];
+    new Random(1).nextBytes(content);
+
+    file = new File(getContext().getCacheDir(), "resumable_test.jpg");
+    FileOutputStream out = new FileOutputStream(file);
+    out.write(content);
+    out.close();
+
+    item           = new ImageItem();
+    item.prefs     = PreferenceManager.getDefaultSharedPreferences(getContext());
+    item.imageAuth = "test";
+    item.imageId   = Integer.MAX_VALUE;
+    item.imagePath = file.getPath();
+    item.imageName = file.getName();
+    item.imageType = "image/jpeg";
+    item.imageSize = LENGTH;
+
+    store = new UploadSessionStore(getContext());
+    store.remove(item);
+  }
+
+  @Override
+  protected void tearDown() throws Exception
+  {
+    store.remove(item);
+    server.stop();
+    file.delete();
+
+    super.tearDown();
+  }
+
+  /**
+   * Complete upload without failures
+   *
+   * @throws IOException
+   */
+  public void testUpload() throws IOException
+  {
+    createUploader().upload(file);
+
+    assertTrue(Arrays.equals(content, server.getReceived()));
+    assertEquals(1, server.getSessions());
+  }
+
+  /**
+   * Connection dropped in the middle of a chunk, next upload asks the
+   * server for the offset and continues the session
+   *
+   * @throws IOException
+   */
+  public void testResumeAfterDroppedChunk() throws IOException
+  {
+    server.dropAt(DROP_AT);
+
+    try {
+      createUploader().upload(file);
+      fail("Upload should fail when connection is dropped");
+    } catch (IOException e) {
+    }
+
+    createUploader().upload(file);
+
+    assertTrue(Arrays.equals(content, server.getReceived()));
+    assertEquals(1, server.getSessions());
+  }
+
+  /**
+   * Status query fails as well, next upload continues the session at the
+   * offset that was confirmed last
+   *
+   * @throws IOException
+   */
+  public void testResumeAtStoredOffset() throws IOException
+  {
+    server.dropAt(DROP_AT);
+
+    try {
+      createUploader().upload(file);
+      fail("Upload should fail when connection is dropped");
+    } catch (IOException e) {
+    }
+
+    server.dropStatusQueries(true);
+    createUploader().upload(file);
+
+    assertTrue(Arrays.equals(content, server.getReceived()));
+    assertEquals(1, server.getSessions());
+    assertNull(store.getUrl(item, file));
+  }
+
+  /**
+   * Create uploader that sends to the local server and does not retry
+   * failed requests itself
+   *
+   * @return Uploader
+   */
+  private ResumableUploader createUploader()
+  {
+    DefaultHttpClient client = new DefaultHttpClient();
+    client.setHttpRequestRetryHandler(new DefaultHttpRequestRetryHandler(0, false));
+
+    ResumableUploader uploader = new ResumableUploader(getContext(), client, item, null, new ContentHash());
+    uploader.setUploadUrl(server.getUploadUrl());
+
+    return uploader;
+  }
+}